@@ -0,0 +1,75 @@
+package gnoolson.locker.benchmark;
+
+import gnoolson.locker.Locker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch of key pairs per call, through {@link Locker#lockKeySets(java.util.Collection)} and through one
+ * {@link Locker#lockKeys(String...)} per pair. Every thread has keys of its own.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Lockers {
+
+        @Param({"OPTIMISTIC_STRIPED", "OPTIMISTIC_CONCURRENT"})
+        public Implementation implementation;
+
+        public Locker locker;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.locker = this.implementation.create();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Batch {
+
+        @Param({"1000"})
+        public int size;
+
+        List<String[]> keySets;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            this.keySets = new ArrayList<>(this.size);
+            for (int i = 0; i < this.size; i++) {
+                String prefix = threadParams.getThreadIndex() + ":" + i;
+                this.keySets.add(new String[]{prefix + ":a", prefix + ":b"});
+            }
+        }
+    }
+
+    @Benchmark
+    public void lockKeySets(Lockers lockers, Batch batch, Blackhole blackhole) {
+        List<Locker.LockedKeys> lockedKeySets = lockers.locker.lockKeySets(batch.keySets);
+        blackhole.consume(lockedKeySets);
+        for (Locker.LockedKeys lockedKeys : lockedKeySets) {
+            lockedKeys.release();
+        }
+    }
+
+    @Benchmark
+    public void lockKeysLoop(Lockers lockers, Batch batch, Blackhole blackhole) {
+        List<Locker.LockedKeys> lockedKeySets = new ArrayList<>(batch.size);
+        for (String[] keys : batch.keySets) {
+            lockedKeySets.add(lockers.locker.lockKeys(keys));
+        }
+        blackhole.consume(lockedKeySets);
+        for (Locker.LockedKeys lockedKeys : lockedKeySets) {
+            lockedKeys.release();
+        }
+    }
+}
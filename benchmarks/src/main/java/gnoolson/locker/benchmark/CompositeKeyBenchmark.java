@@ -0,0 +1,99 @@
+package gnoolson.locker.benchmark;
+
+import gnoolson.locker.BackoffStrategy;
+import gnoolson.locker.KeyLocker;
+import gnoolson.locker.Locker;
+import gnoolson.locker.OptimisticKeyLocker;
+import gnoolson.locker.OptimisticLocalLocker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Composite keys (tenant, entity type, id) locked as they are by an {@link OptimisticKeyLocker}, against the
+ * same keys concatenated into Strings for an {@link OptimisticLocalLocker}. Run with {@code -prof gc} to
+ * compare the allocation rates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompositeKeyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Lockers {
+        public KeyLocker<EntityKey> keyLocker;
+        public Locker stringLocker;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            BackoffStrategy strategy = BackoffStrategy.uniform(0, 5, TimeUnit.MILLISECONDS);
+            this.keyLocker = new OptimisticKeyLocker<>(strategy, 1, TimeUnit.HOURS);
+            this.stringLocker = new OptimisticLocalLocker(strategy, 1, TimeUnit.HOURS);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+        static final int KEYS = 1024;
+        EntityKey[] keys;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            // keys a request would carry around anyway
+            this.keys = new EntityKey[KEYS];
+            for (int i = 0; i < KEYS; i++) {
+                this.keys[i] = new EntityKey("tenant-" + threadParams.getThreadIndex(), "order", i);
+            }
+        }
+
+        EntityKey nextKey() {
+            return this.keys[this.next++ & (KEYS - 1)];
+        }
+    }
+
+    @Benchmark
+    public void compositeKey(Lockers lockers, Keys keys, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = lockers.keyLocker.lockKeys(keys.nextKey())) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+
+    @Benchmark
+    public void concatenatedStringKey(Lockers lockers, Keys keys, Blackhole blackhole) {
+        EntityKey key = keys.nextKey();
+        try (Locker.LockedKeys lockedKeys = lockers.stringLocker.lockKeys(key.tenant + ":" + key.type + ":" + key.id)) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+
+    public static final class EntityKey {
+        final String tenant;
+        final String type;
+        final long id;
+
+        EntityKey(String tenant, String type, long id) {
+            this.tenant = tenant;
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof EntityKey)) {
+                return false;
+            }
+            EntityKey other = (EntityKey) o;
+            return this.id == other.id && this.tenant.equals(other.tenant) && this.type.equals(other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.tenant.hashCode() * 31 + this.type.hashCode()) * 31 + Long.hashCode(this.id);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package gnoolson.locker.benchmark;
+
+import gnoolson.locker.Locker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keyed locks running next to an occasional global lock. The keyed and global rates are reported separately.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GlobalLockBenchmark {
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public void keyed(LockerState state, ThreadKeys keys, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = state.locker.lockKeys(keys.single)) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void global(LockerState state, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = state.locker.lock()) {
+            blackhole.consume(lockedKeys);
+        }
+        Blackhole.consumeCPU(1024);
+    }
+}
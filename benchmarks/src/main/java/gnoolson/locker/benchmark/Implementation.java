@@ -0,0 +1,84 @@
+package gnoolson.locker.benchmark;
+
+import gnoolson.locker.BackoffStrategy;
+import gnoolson.locker.HierarchicalLocalLocker;
+import gnoolson.locker.LockMetrics;
+import gnoolson.locker.Locker;
+import gnoolson.locker.OptimisticLocalLocker;
+import gnoolson.locker.ParkingLocalLocker;
+import gnoolson.locker.PessimisticLocalLocker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Locker configurations compared by the benchmarks. Attempt time limits are lifted so that a
+ * heavily contended run measures waiting instead of failing.
+ */
+public enum Implementation {
+
+    OPTIMISTIC_STRIPED {
+        @Override
+        public Locker create() {
+            return new OptimisticLocalLocker(0, 5, ATTEMPT_TIME, OptimisticLocalLocker.Registry.STRIPED);
+        }
+    },
+    OPTIMISTIC_CONCURRENT {
+        @Override
+        public Locker create() {
+            return new OptimisticLocalLocker(0, 5, ATTEMPT_TIME, OptimisticLocalLocker.Registry.CONCURRENT);
+        }
+    },
+    OPTIMISTIC_SPIN_YIELD_PARK {
+        @Override
+        public Locker create() {
+            return new OptimisticLocalLocker(BackoffStrategy.spinYieldPark(16, 16, 10, 1000, TimeUnit.MICROSECONDS), ATTEMPT_TIME);
+        }
+    },
+    OPTIMISTIC_EXPONENTIAL {
+        @Override
+        public Locker create() {
+            return new OptimisticLocalLocker(BackoffStrategy.exponential(10, 5000, TimeUnit.MICROSECONDS), ATTEMPT_TIME);
+        }
+    },
+    OPTIMISTIC_ADAPTIVE {
+        @Override
+        public Locker create() {
+            return new OptimisticLocalLocker(BackoffStrategy.adaptive(20, 5000, TimeUnit.MICROSECONDS), ATTEMPT_TIME);
+        }
+    },
+    OPTIMISTIC_METRICS {
+        @Override
+        public Locker create() {
+            return new OptimisticLocalLocker(BackoffStrategy.uniform(0, 5, TimeUnit.MILLISECONDS), ATTEMPT_TIME, TimeUnit.MILLISECONDS,
+                    OptimisticLocalLocker.Registry.STRIPED, new LockMetrics());
+        }
+    },
+    PESSIMISTIC {
+        @Override
+        public Locker create() {
+            return new PessimisticLocalLocker(ATTEMPT_TIME, false);
+        }
+    },
+    PESSIMISTIC_ORDERED {
+        @Override
+        public Locker create() {
+            return new PessimisticLocalLocker(ATTEMPT_TIME, false, PessimisticLocalLocker.AcquisitionMode.ORDERED);
+        }
+    },
+    PARKING {
+        @Override
+        public Locker create() {
+            return new ParkingLocalLocker(ATTEMPT_TIME);
+        }
+    },
+    HIERARCHICAL {
+        @Override
+        public Locker create() {
+            return new HierarchicalLocalLocker(BackoffStrategy.uniform(0, 5, TimeUnit.MILLISECONDS), ATTEMPT_TIME, TimeUnit.MILLISECONDS);
+        }
+    };
+
+    private static final long ATTEMPT_TIME = TimeUnit.HOURS.toMillis(1);
+
+    public abstract Locker create();
+}
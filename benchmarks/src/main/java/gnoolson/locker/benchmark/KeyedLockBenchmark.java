@@ -0,0 +1,57 @@
+package gnoolson.locker.benchmark;
+
+import gnoolson.locker.Locker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acquire-and-release throughput of keyed locks. The thread count comes from the command line ({@code -t}),
+ * or run {@link ThreadSweep} to repeat the whole suite for several thread counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyedLockBenchmark {
+
+    @Benchmark
+    public void singleKey(LockerState state, ThreadKeys keys, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = state.locker.lockKeys(keys.single)) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+
+    @Benchmark
+    public void disjointMultiKey(LockerState state, ThreadKeys keys, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = state.locker.lockKeys(keys.disjoint)) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+
+    @Benchmark
+    public void overlappingRotatingKeys(LockerState state, ThreadKeys keys, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = state.locker.lockKeys(keys.nextRotating())) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+
+    @Benchmark
+    public void sharedHotKey(LockerState state, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = state.locker.lockKeysShared(state.keys[0])) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+
+    @Benchmark
+    public void reentrantSameKey(LockerState state, ThreadKeys keys, Blackhole blackhole) {
+        try (Locker.LockedKeys outer = state.locker.lockKeys(keys.single)) {
+            try (Locker.LockedKeys inner = state.locker.lockKeys(keys.single)) {
+                blackhole.consume(inner);
+            }
+            blackhole.consume(outer);
+        }
+    }
+}
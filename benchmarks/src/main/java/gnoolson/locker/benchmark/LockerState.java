@@ -0,0 +1,32 @@
+package gnoolson.locker.benchmark;
+
+import gnoolson.locker.Locker;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One locker shared by every benchmark thread, plus the pool of keys the threads draw from.
+ */
+@State(Scope.Benchmark)
+public class LockerState {
+
+    @Param({"OPTIMISTIC_STRIPED", "OPTIMISTIC_CONCURRENT", "PESSIMISTIC", "PESSIMISTIC_ORDERED", "PARKING"})
+    public Implementation implementation;
+
+    /**
+     * Number of distinct keys in the pool.
+     */
+    @Param({"16", "1024"})
+    public int cardinality;
+
+    public Locker locker;
+    public String[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.locker = this.implementation.create();
+        this.keys = new String[this.cardinality];
+        for (int i = 0; i < this.cardinality; i++) {
+            this.keys[i] = "key_" + i;
+        }
+    }
+}
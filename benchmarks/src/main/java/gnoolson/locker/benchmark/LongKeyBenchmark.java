@@ -0,0 +1,68 @@
+package gnoolson.locker.benchmark;
+
+import gnoolson.locker.Locker;
+import gnoolson.locker.LongKeyLocker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Numeric ids locked as long keys, against the same ids formatted into String keys. Only a {@link LongKeyLocker}
+ * can run it; run with {@code -prof gc} to compare the allocation rates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LongKeyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Lockers {
+
+        @Param({"OPTIMISTIC_STRIPED"})
+        public Implementation implementation;
+
+        public LongKeyLocker locker;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Locker locker = this.implementation.create();
+            if (!(locker instanceof LongKeyLocker))
+                throw new RuntimeException(String.format("%s does not lock long keys", this.implementation));
+
+            this.locker = (LongKeyLocker) locker;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Ids {
+        static final int IDS = 1024;
+        long next;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            this.next = threadParams.getThreadIndex() * (long) IDS;
+        }
+
+        long nextId() {
+            return 1_000_000_000L + this.next++ % IDS;
+        }
+    }
+
+    @Benchmark
+    public void longKey(Lockers lockers, Ids ids, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = lockers.locker.lockKey(ids.nextId())) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+
+    @Benchmark
+    public void formattedStringKey(Lockers lockers, Ids ids, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = lockers.locker.lockKeys(Long.toString(ids.nextId()))) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+}
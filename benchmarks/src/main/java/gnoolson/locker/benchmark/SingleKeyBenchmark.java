@@ -0,0 +1,68 @@
+package gnoolson.locker.benchmark;
+
+import gnoolson.locker.Locker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One uncontended key per call, through {@link Locker#lockKey(String)} and through
+ * {@link Locker#lockKeys(String...)}. Run with {@code -prof gc} to compare what each call allocates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SingleKeyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Lockers {
+
+        @Param({"OPTIMISTIC_STRIPED"})
+        public Implementation implementation;
+
+        public Locker locker;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.locker = this.implementation.create();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+        static final int KEYS = 1024;
+        String[] keys;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            // created up front, so only the locker allocates while measuring
+            this.keys = new String[KEYS];
+            for (int i = 0; i < KEYS; i++) {
+                this.keys[i] = threadParams.getThreadIndex() + ":" + i;
+            }
+        }
+
+        String nextKey() {
+            return this.keys[this.next++ & (KEYS - 1)];
+        }
+    }
+
+    @Benchmark
+    public void lockKey(Lockers lockers, Keys keys, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = lockers.locker.lockKey(keys.nextKey())) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+
+    @Benchmark
+    public void lockKeys(Lockers lockers, Keys keys, Blackhole blackhole) {
+        try (Locker.LockedKeys lockedKeys = lockers.locker.lockKeys(keys.nextKey())) {
+            blackhole.consume(lockedKeys);
+        }
+    }
+}
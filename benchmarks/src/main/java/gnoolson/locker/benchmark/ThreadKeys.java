@@ -0,0 +1,54 @@
+package gnoolson.locker.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Key sets prepared once per benchmark thread, so the measured loop does no key arithmetic.
+ */
+@State(Scope.Thread)
+public class ThreadKeys {
+
+    static final int MULTI_KEY_SIZE = 4;
+    static final int ROTATING_SETS = 6;
+    static final int ROTATING_SET_SIZE = 5;
+
+    /**
+     * Key owned by this thread alone, as long as there are at least as many keys as threads.
+     */
+    public String single;
+    /**
+     * Keys owned by this thread alone, as long as the pool is large enough.
+     */
+    public String[] disjoint;
+    /**
+     * Overlapping key sets rotated over the first keys of the pool, as in LockerTest.many_locks.
+     */
+    public String[][] rotating;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp(LockerState state, ThreadParams threadParams) {
+        String[] keys = state.keys;
+        int index = threadParams.getThreadIndex();
+
+        this.single = keys[index % keys.length];
+
+        this.disjoint = new String[MULTI_KEY_SIZE];
+        for (int i = 0; i < MULTI_KEY_SIZE; i++) {
+            this.disjoint[i] = keys[(index * MULTI_KEY_SIZE + i) % keys.length];
+        }
+
+        this.rotating = new String[ROTATING_SETS][ROTATING_SET_SIZE];
+        for (int set = 0; set < ROTATING_SETS; set++) {
+            for (int i = 0; i < ROTATING_SET_SIZE; i++) {
+                this.rotating[set][i] = keys[(set + i) % Math.min(ROTATING_SETS, keys.length)];
+            }
+        }
+        this.next = index;
+    }
+
+    public String[] nextRotating() {
+        return this.rotating[this.next++ % ROTATING_SETS];
+    }
+}
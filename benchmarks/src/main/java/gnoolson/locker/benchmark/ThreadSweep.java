@@ -0,0 +1,33 @@
+package gnoolson.locker.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the keyed benchmarks once per thread count. The first argument is a comma separated list of
+ * thread counts; the remaining ones are passed to JMH unchanged, e.g.
+ * {@code java -cp benchmarks.jar gnoolson.locker.benchmark.ThreadSweep 1,4,16,64 -p cardinality=1024}
+ */
+public class ThreadSweep {
+
+    public static void main(String... args) throws RunnerException, CommandLineOptionException {
+        if (args.length == 0)
+            throw new RuntimeException("The thread counts are not specified");
+
+        String[] jmhArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, jmhArgs, 0, jmhArgs.length);
+        CommandLineOptions commandLine = new CommandLineOptions(jmhArgs);
+
+        for (String threads : args[0].split(",")) {
+            OptionsBuilder options = new OptionsBuilder();
+            options.parent(commandLine).threads(Integer.parseInt(threads.trim()));
+            if (commandLine.getIncludes().isEmpty()) {
+                options.include(KeyedLockBenchmark.class.getSimpleName());
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
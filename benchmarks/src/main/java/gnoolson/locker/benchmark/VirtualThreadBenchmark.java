@@ -0,0 +1,81 @@
+package gnoolson.locker.benchmark;
+
+import gnoolson.locker.Locker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@value #CALLERS} callers, each on a virtual thread of its own, lock keys of the pool, do a little work and
+ * release them. Every invocation starts all of the callers at once and waits for the last one, so the score is
+ * the number of lock/unlock cycles per second with that many threads competing. Needs Java 21 or later to run;
+ * the virtual thread executor is looked up reflectively, so the project still builds for Java 8.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+
+    static final int CALLERS = 100_000;
+    private static final int WORK = 64;
+
+    @Setup(Level.Trial)
+    public void checkVirtualThreads() {
+        newVirtualThreadPerTaskExecutor().shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLERS)
+    public void singleKey(LockerState state) throws InterruptedException {
+        String[] keys = state.keys;
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < CALLERS; i++) {
+            String key = keys[i % keys.length];
+            executor.execute(() -> {
+                try (Locker.LockedKeys lockedKeys = state.locker.lockKeys(key)) {
+                    Blackhole.consumeCPU(WORK);
+                }
+            });
+        }
+        awaitCallers(executor);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLERS)
+    public void overlappingKeyPairs(LockerState state) throws InterruptedException {
+        String[] keys = state.keys;
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < CALLERS; i++) {
+            String first = keys[i % keys.length];
+            String second = keys[(i + 1) % keys.length];
+            executor.execute(() -> {
+                try (Locker.LockedKeys lockedKeys = state.locker.lockKeys(first, second)) {
+                    Blackhole.consumeCPU(WORK);
+                }
+            });
+        }
+        awaitCallers(executor);
+    }
+
+    private static void awaitCallers(ExecutorService executor) throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.MINUTES))
+            throw new RuntimeException("The callers did not finish in 10 minutes");
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException("Virtual threads need Java 21 or later", e);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
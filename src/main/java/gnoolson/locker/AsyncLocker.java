@@ -0,0 +1,14 @@
+package gnoolson.locker;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link Locker} whose locks are not bound to the thread that took them, so they can be taken without blocking.
+ */
+public interface AsyncLocker extends Locker {
+
+    /**
+     * Locks the keys without blocking the calling thread; the future completes once they are locked.
+     */
+    CompletableFuture<LockedKeys> lockKeysAsync(String... keys);
+}
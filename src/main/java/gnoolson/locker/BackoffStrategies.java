@@ -0,0 +1,179 @@
+package gnoolson.locker;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Built-in strategies behind the factory methods of BackoffStrategy.
+ * */
+final class BackoffStrategies {
+
+    private BackoffStrategies() {
+    }
+
+    static void park(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+        if (Thread.interrupted()) {
+            throw new RuntimeException(new InterruptedException());
+        }
+    }
+
+    private static long random(long min, long max) {
+        return max <= min ? min : ThreadLocalRandom.current().nextLong(min, max + 1);
+    }
+
+    // doubles base once per attempt after the first one without overflowing
+    private static long grow(long base, int attempt, long max) {
+        int shift = Math.min(attempt - 1, 62);
+        return base > (max >> shift) ? max : base << shift;
+    }
+
+    /*
+     *
+     *
+     * */
+    static class Uniform implements BackoffStrategy {
+        private final long minimumWaitTime;
+        private final long maximumWaitTime;
+
+        Uniform(long minimumWaitTime, long maximumWaitTime) {
+            if (minimumWaitTime < 0)
+                throw new RuntimeException("The minimum time is less than 0 ns");
+
+            if (maximumWaitTime < 1)
+                throw new RuntimeException("The maximum time is less than 1 ns");
+
+            if (minimumWaitTime > maximumWaitTime)
+                throw new RuntimeException("The minimum time is greater than the maximum time");
+
+            this.minimumWaitTime = minimumWaitTime;
+            this.maximumWaitTime = maximumWaitTime;
+        }
+
+        @Override
+        public void backoff(String key, int attempt, long maxNanos) {
+            park(Math.min(random(this.minimumWaitTime, this.maximumWaitTime), maxNanos));
+        }
+    }
+
+    static class SpinYieldPark implements BackoffStrategy {
+        private final int spins;
+        private final int yields;
+        private final long minimumParkTime;
+        private final long maximumParkTime;
+
+        SpinYieldPark(int spins, int yields, long minimumParkTime, long maximumParkTime) {
+            if (spins < 0 || yields < 0)
+                throw new RuntimeException("The number of spins or yields is less than 0");
+
+            if (minimumParkTime < 1)
+                throw new RuntimeException("The minimum park time is less than 1 ns");
+
+            if (minimumParkTime > maximumParkTime)
+                throw new RuntimeException("The minimum time is greater than the maximum time");
+
+            this.spins = spins;
+            this.yields = yields;
+            this.minimumParkTime = minimumParkTime;
+            this.maximumParkTime = maximumParkTime;
+        }
+
+        @Override
+        public void backoff(String key, int attempt, long maxNanos) {
+            if (attempt <= this.spins) {
+                return;
+            }
+            if (attempt <= this.spins + this.yields) {
+                Thread.yield();
+                return;
+            }
+            long parkTime = grow(this.minimumParkTime, attempt - this.spins - this.yields, this.maximumParkTime);
+            park(Math.min(parkTime, maxNanos));
+        }
+    }
+
+    static class Exponential implements BackoffStrategy {
+        private final long base;
+        private final long maximumWaitTime;
+
+        Exponential(long base, long maximumWaitTime) {
+            if (base < 1)
+                throw new RuntimeException("The base time is less than 1 ns");
+
+            if (base > maximumWaitTime)
+                throw new RuntimeException("The base time is greater than the maximum time");
+
+            this.base = base;
+            this.maximumWaitTime = maximumWaitTime;
+        }
+
+        @Override
+        public void backoff(String key, int attempt, long maxNanos) {
+            park(Math.min(random(0, grow(this.base, attempt, this.maximumWaitTime)), maxNanos));
+        }
+    }
+
+    /*
+     * Hold times are averaged per slot of a hashed table, like the sequence counters of KeyVersions, so the
+     * estimates survive the lock objects of idle keys; keys sharing a slot share an estimate. Updates race
+     * with each other, which only costs a sample now and then.
+     * */
+    static class Adaptive implements BackoffStrategy {
+        private static final int SLOTS = 1024;
+        // each slot gets a cache line of its own
+        private static final int PADDING = 8;
+        // weight of a new sample in the moving average: 1/8
+        private static final int SMOOTHING = 3;
+        // unknown and short hold times are only retried at once this many times
+        private static final int SPINS = 4;
+        private final AtomicLongArray holdTimes = new AtomicLongArray(SLOTS * PADDING);
+        private final long spinThreshold;
+        private final long maximumWaitTime;
+
+        Adaptive(long spinThreshold, long maximumWaitTime) {
+            if (spinThreshold < 0)
+                throw new RuntimeException("The spin threshold is less than 0 ns");
+
+            if (maximumWaitTime < 1)
+                throw new RuntimeException("The maximum time is less than 1 ns");
+
+            this.spinThreshold = spinThreshold;
+            this.maximumWaitTime = maximumWaitTime;
+        }
+
+        @Override
+        public void backoff(String key, int attempt, long maxNanos) {
+            long holdTime = this.holdTimes.get(index(key));
+            if (holdTime < this.spinThreshold && attempt <= SPINS) {
+                if (attempt > 1) {
+                    Thread.yield();
+                }
+                return;
+            }
+            // half the estimate up to twice of it, growing with every attempt
+            long wait = grow(Math.max(Math.max(holdTime, this.spinThreshold), 2), attempt, this.maximumWaitTime);
+            long upper = wait > this.maximumWaitTime >> 1 ? this.maximumWaitTime : wait << 1;
+            park(Math.min(random(wait >> 1, upper), maxNanos));
+        }
+
+        @Override
+        public void released(String key, long heldNanos) {
+            int index = index(key);
+            long average = this.holdTimes.get(index);
+            this.holdTimes.lazySet(index, average == 0 ? heldNanos : average + ((heldNanos - average) >> SMOOTHING));
+        }
+
+        @Override
+        public boolean learnsHoldTimes() {
+            return true;
+        }
+
+        private static int index(String key) {
+            int h = key.hashCode();
+            return ((h ^ (h >>> 16)) & (SLOTS - 1)) * PADDING;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package gnoolson.locker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how {@link OptimisticLocalLocker} waits between two attempts to lock a set of keys.
+ */
+public interface BackoffStrategy {
+
+    /**
+     * Waits before the next attempt. May return at once, for an immediate retry.
+     *
+     * @param key      the key found taken; the global lock has a key of its own
+     * @param attempt  number of failed attempts of this acquisition so far, starting at 1
+     * @param maxNanos the wait must not be longer than this
+     */
+    void backoff(String key, int attempt, long maxNanos);
+
+    /**
+     * Reports how long a key was held. Only called if {@link #learnsHoldTimes()} is true.
+     */
+    default void released(String key, long heldNanos) {
+    }
+
+    default boolean learnsHoldTimes() {
+        return false;
+    }
+
+    /**
+     * A random wait between the two bounds on every retry.
+     */
+    static BackoffStrategy uniform(long minimumWaitTime, long maximumWaitTime, TimeUnit unit) {
+        return new BackoffStrategies.Uniform(unit.toNanos(minimumWaitTime), unit.toNanos(maximumWaitTime));
+    }
+
+    /**
+     * Retries at once for the first {@code spins} attempts, yields the processor for the next {@code yields}
+     * attempts, then parks for a time growing from the minimum to the maximum park time.
+     */
+    static BackoffStrategy spinYieldPark(int spins, int yields, long minimumParkTime, long maximumParkTime, TimeUnit unit) {
+        return new BackoffStrategies.SpinYieldPark(spins, yields, unit.toNanos(minimumParkTime), unit.toNanos(maximumParkTime));
+    }
+
+    /**
+     * Waits a random time between 0 and {@code base * 2^(attempt - 1)}, capped at the maximum wait time.
+     */
+    static BackoffStrategy exponential(long base, long maximumWaitTime, TimeUnit unit) {
+        return new BackoffStrategies.Exponential(unit.toNanos(base), unit.toNanos(maximumWaitTime));
+    }
+
+    /**
+     * Keeps a moving average of how long each key is held and waits around that long, a little longer
+     * after every failed attempt. Keys held for less than the spin threshold are retried at once.
+     */
+    static BackoffStrategy adaptive(long spinThreshold, long maximumWaitTime, TimeUnit unit) {
+        return new BackoffStrategies.Adaptive(unit.toNanos(spinThreshold), unit.toNanos(maximumWaitTime));
+    }
+}
@@ -0,0 +1,177 @@
+package gnoolson.locker;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link LockerListener} that finds the keys most often found taken. It samples failed lock attempts and keeps
+ * a Space-Saving sketch of a fixed number of keys: a key seen often enough is always among them, with a count
+ * overestimated by at most the error reported next to it. Counts and wait times are scaled up by the sampling
+ * rate, so they estimate totals.
+ */
+public class ContentionProfiler implements LockerListener, ContentionProfilerMBean {
+
+    /**
+     * Stands for the global lock in the results.
+     */
+    public static final String GLOBAL_LOCK = "<global lock>";
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, HotKey> keys = new HashMap<>();
+    private final int capacity;
+    private final int sampling;
+
+    public ContentionProfiler() {
+        this(64, 1);
+    }
+
+    /**
+     * @param capacity number of keys tracked; the top keys are the more accurate the larger it is
+     * @param sampling one failed attempt out of this many (on average) is recorded
+     */
+    public ContentionProfiler(int capacity, int sampling) {
+        if (capacity < 1)
+            throw new RuntimeException("The capacity is less than 1");
+
+        if (sampling < 1)
+            throw new RuntimeException("The sampling rate is less than 1");
+
+        this.capacity = capacity;
+        this.sampling = sampling;
+    }
+
+    @Override
+    public void contended(String key, long waitNanos) {
+        if (this.sampling > 1 && ThreadLocalRandom.current().nextInt(this.sampling) != 0) {
+            return;
+        }
+        if (key == null) {
+            key = GLOBAL_LOCK;
+        }
+
+        this.lock.lock();
+        try {
+            HotKey hotKey = this.keys.get(key);
+            if (hotKey == null) {
+                if (this.keys.size() < this.capacity) {
+                    hotKey = new HotKey(key, 0);
+                } else {
+                    // the new key takes over the count of the least contended one, which becomes its error bound
+                    HotKey evicted = Collections.min(this.keys.values(), Comparator.comparingLong(k -> k.count));
+                    this.keys.remove(evicted.key);
+                    hotKey = new HotKey(key, evicted.count);
+                }
+                this.keys.put(key, hotKey);
+            }
+            hotKey.count += this.sampling;
+            hotKey.waitNanos += waitNanos * this.sampling;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return at most n keys, most contended first
+     */
+    public List<HotKey> getHotKeys(int n) {
+        List<HotKey> hotKeys = new ArrayList<>();
+        this.lock.lock();
+        try {
+            for (HotKey hotKey : this.keys.values()) {
+                hotKeys.add(hotKey.copy());
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        hotKeys.sort(Comparator.comparingLong((HotKey k) -> k.count).reversed());
+        return hotKeys.size() > n ? new ArrayList<>(hotKeys.subList(0, n)) : hotKeys;
+    }
+
+    @Override
+    public String[] getHotKeys() {
+        return this.getHotKeys(this.capacity).stream().map(HotKey::toString).toArray(String[]::new);
+    }
+
+    @Override
+    public void reset() {
+        this.lock.lock();
+        try {
+            this.keys.clear();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Registers the profiler with the platform MBean server as {@code gnoolson.locker:type=ContentionProfiler,name=<name>}.
+     */
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("gnoolson.locker:type=ContentionProfiler,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     *
+     *
+     * */
+    public static class HotKey {
+        private final String key;
+        private final long error;
+        private long count;
+        private long waitNanos;
+
+        private HotKey(String key, long error) {
+            this.key = key;
+            this.error = error;
+            this.count = error;
+        }
+
+        private HotKey copy() {
+            HotKey copy = new HotKey(this.key, this.error);
+            copy.count = this.count;
+            copy.waitNanos = this.waitNanos;
+            return copy;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        /**
+         * @return estimated number of failed attempts on the key
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return how much of the count may belong to keys evicted before this one
+         */
+        public long getError() {
+            return this.error;
+        }
+
+        /**
+         * @return estimated time spent waiting for the key
+         */
+        public long getWaitNanos() {
+            return this.waitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d failed attempts (+/- %d), %d ms waited",
+                    this.key, this.count, this.error, TimeUnit.NANOSECONDS.toMillis(this.waitNanos));
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package gnoolson.locker;
+
+/**
+ * JMX view of {@link ContentionProfiler}.
+ */
+public interface ContentionProfilerMBean {
+
+    /**
+     * @return the most contended keys, most contended first, one line each
+     */
+    String[] getHotKeys();
+
+    void reset();
+}
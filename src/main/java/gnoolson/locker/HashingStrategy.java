@@ -0,0 +1,20 @@
+package gnoolson.locker;
+
+/**
+ * Decides which keys of an {@link OptimisticKeyLocker} are the same key, in place of their own
+ * {@link Object#equals(Object)} and {@link Object#hashCode()}.
+ */
+public interface HashingStrategy<K> {
+
+    int hashCode(K key);
+
+    boolean equals(K key, K other);
+
+    /**
+     * The keys' own equals and hashCode.
+     */
+    @SuppressWarnings("unchecked")
+    static <K> HashingStrategy<K> natural() {
+        return (HashingStrategy<K>) NaturalHashingStrategy.INSTANCE;
+    }
+}
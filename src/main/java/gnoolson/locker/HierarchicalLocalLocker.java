@@ -0,0 +1,465 @@
+package gnoolson.locker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Implementation of {@link Locker} over tree-structured keys such as {@code "tenant/42/order/7"}. Locking a key
+ * locks the whole subtree below it: {@code lockKeys("tenant/42")} excludes every key starting with
+ * {@code "tenant/42/"}, and nothing else. The ancestors of a locked key take intention locks, shared for
+ * {@link #lockKeysShared(String...)} and exclusive for {@link #lockKeys(String...)}, so conflicts are found
+ * on the way down without looking at the descendants. {@link #lock()} locks the root, the whole tree.
+ * <p>
+ * Like {@link OptimisticLocalLocker}, every node of a call is taken or none, with a {@link BackoffStrategy}
+ * between two attempts. Exclusive holds are reentrant, and their owner may lock anything below them; a shared
+ * holder can not lock a key below its own shared key exclusively.
+ */
+public class HierarchicalLocalLocker implements Locker {
+
+    // the root is the empty path
+    private static final String ROOT = "";
+    private static final int ROOT_STRIPES = Runtime.getRuntime().availableProcessors() * 4;
+    // every call takes the root, which is therefore never pinned nor kept in the map
+    private final Node root = new Root();
+    private final PinnedMap<Node> nodes = new PinnedMap<>(Node::new);
+    // exclusive holds of a node
+    private final KeyVersions versions = new KeyVersions(Runtime.getRuntime().availableProcessors() * 64);
+    // exclusive holds of a node and intention exclusive holds, that is exclusive holds below it
+    private final KeyVersions subtreeVersions = new KeyVersions(Runtime.getRuntime().availableProcessors() * 64);
+    private final char separator;
+    private final BackoffStrategy backoffStrategy;
+    // nanoseconds
+    private final long maximumLockAttemptTime;
+
+    /*
+     * Modes of a node and the other modes that must not be held to take them. An exclusive hold also excludes
+     * other exclusive holds.
+     * */
+    private enum Mode {
+        INTENTION_SHARED,
+        INTENTION_EXCLUSIVE,
+        SHARED,
+        EXCLUSIVE;
+
+        static {
+            INTENTION_SHARED.conflicts = new Mode[]{EXCLUSIVE};
+            INTENTION_EXCLUSIVE.conflicts = new Mode[]{SHARED, EXCLUSIVE};
+            SHARED.conflicts = new Mode[]{INTENTION_EXCLUSIVE, EXCLUSIVE};
+            EXCLUSIVE.conflicts = new Mode[]{INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED};
+        }
+
+        private Mode[] conflicts;
+
+        /*
+         * The weakest mode covering both; shared plus intention exclusive has no mode of its own.
+         * */
+        private Mode combine(Mode other) {
+            if (this == other) {
+                return this;
+            }
+            if (this == INTENTION_SHARED || other == INTENTION_SHARED) {
+                return this == INTENTION_SHARED ? other : this;
+            }
+            return EXCLUSIVE;
+        }
+    }
+
+    /*
+     *
+     *
+     * */
+    public HierarchicalLocalLocker() {
+        this('/');
+    }
+
+    public HierarchicalLocalLocker(char separator) {
+        this(separator, BackoffStrategy.uniform(0, 5, TimeUnit.MILLISECONDS), 2000, TimeUnit.MILLISECONDS);
+    }
+
+    public HierarchicalLocalLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, TimeUnit unit) {
+        this('/', backoffStrategy, maximumLockAttemptTime, unit);
+    }
+
+    /**
+     * @param separator between the levels of a key
+     */
+    public HierarchicalLocalLocker(char separator, BackoffStrategy backoffStrategy, long maximumLockAttemptTime, TimeUnit unit) {
+        if (backoffStrategy == null)
+            throw new RuntimeException("The backoff strategy is not specified");
+
+        if (maximumLockAttemptTime < 1)
+            throw new RuntimeException("The maximum lock attempt time is less than 1 ns");
+
+        this.separator = separator;
+        this.backoffStrategy = backoffStrategy;
+        this.maximumLockAttemptTime = Locks.boundedTimeout(unit.toNanos(maximumLockAttemptTime));
+    }
+
+    @Override
+    public LockedKeys lock() {
+        return this.lockOrFail(new Plan(new String[]{ROOT}, new Mode[]{Mode.EXCLUSIVE}));
+    }
+
+    @Override
+    public LockedKeys lockKeys(String... keys) {
+        return this.lockOrFail(this.plan(false, keys));
+    }
+
+    @Override
+    public LockedKeys lockKeysShared(String... keys) {
+        return this.lockOrFail(this.plan(true, keys));
+    }
+
+    @Override
+    public LockedKeys tryLockKeys(String... keys) {
+        Plan plan = this.plan(false, keys);
+        return this.tryLockAll(plan) == null ? new HLockedKeys(plan) : null;
+    }
+
+    @Override
+    public LockedKeys tryLockKeys(long timeout, TimeUnit unit, String... keys) {
+        return this.lock(this.plan(false, keys), unit.toNanos(timeout));
+    }
+
+    /**
+     * The stamp is invalidated by exclusive locks on the keys, on their ancestors and anywhere below them.
+     */
+    @Override
+    public ReadStamp tryOptimisticRead(String... keys) {
+        Map<String, Boolean> ancestors = new LinkedHashMap<>();
+        for (String key : keys) {
+            this.ancestors(key, (path, last) -> ancestors.putIfAbsent(path, Boolean.TRUE));
+        }
+        ReadStamp nodes = this.versions.stamp(ancestors.keySet().toArray(new String[0]));
+        ReadStamp subtrees = this.subtreeVersions.stamp(keys);
+        return () -> nodes.validate() && subtrees.validate();
+    }
+
+    @Override
+    public boolean hasLockedThreads() {
+        return this.root.isHeld() || !this.nodes.isEmpty();
+    }
+
+    /*
+     *
+     *
+     * */
+    private LockedKeys lockOrFail(Plan plan) {
+        LockedKeys lockedKeys = this.lock(plan, this.maximumLockAttemptTime);
+        if (lockedKeys == null) {
+            throw Locks.timeoutException(this.maximumLockAttemptTime);
+        }
+        return lockedKeys;
+    }
+
+    /*
+     * Returns null once the timeout has passed.
+     * */
+    private LockedKeys lock(Plan plan, long timeout) {
+        long deadline = Locks.deadline(timeout);
+
+        for (int attempt = 1; ; attempt++) {
+            String conflict = this.tryLockAll(plan);
+            if (conflict == null) {
+                return new HLockedKeys(plan);
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            this.backoffStrategy.backoff(conflict, attempt, remaining);
+        }
+    }
+
+    /*
+     * Takes every node of the plan or none of them. Returns null on success, otherwise the path found taken.
+     * */
+    private String tryLockAll(Plan plan) {
+        for (int i = 0; i < plan.paths.length; i++) {
+            Node node = this.pin(plan.paths[i]);
+            int cell = node.tryLock(plan.modes[i]);
+            if (cell < 0) {
+                this.unpin(node);
+                this.unlock(plan, i);
+                return plan.paths[i];
+            }
+            plan.nodes[i] = node;
+            plan.cells[i] = cell;
+            this.versionLocked(node, plan.modes[i]);
+        }
+        return null;
+    }
+
+    /*
+     * Releases the first nodes of the plan, in reverse order.
+     * */
+    private void unlock(Plan plan, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            Node node = plan.nodes[i];
+            plan.nodes[i] = null;
+            this.versionUnlocked(node, plan.modes[i]);
+            node.unlock(plan.modes[i], plan.cells[i]);
+            this.unpin(node);
+        }
+    }
+
+    private Node pin(String path) {
+        return path.isEmpty() ? this.root : this.nodes.pin(path);
+    }
+
+    private void unpin(Node node) {
+        if (node != this.root) {
+            this.nodes.unpin(node);
+        }
+    }
+
+    private void versionLocked(Node node, Mode mode) {
+        if (mode == Mode.EXCLUSIVE) {
+            this.versions.writeLocked(node.path);
+        }
+        if (mode == Mode.EXCLUSIVE || mode == Mode.INTENTION_EXCLUSIVE) {
+            this.subtreeVersions.writeLocked(node.path);
+        }
+    }
+
+    private void versionUnlocked(Node node, Mode mode) {
+        if (mode == Mode.EXCLUSIVE) {
+            this.versions.writeUnlocked(node.path);
+        }
+        if (mode == Mode.EXCLUSIVE || mode == Mode.INTENTION_EXCLUSIVE) {
+            this.subtreeVersions.writeUnlocked(node.path);
+        }
+    }
+
+    /*
+     * Every key in the given mode and its ancestors, root first, in the matching intention mode. A node needed
+     * in several modes is taken once in a mode covering all of them.
+     * */
+    private Plan plan(boolean shared, String... keys) {
+        Mode mode = shared ? Mode.SHARED : Mode.EXCLUSIVE;
+        Mode intention = shared ? Mode.INTENTION_SHARED : Mode.INTENTION_EXCLUSIVE;
+        Map<String, Mode> modes = new LinkedHashMap<>();
+        for (String key : keys) {
+            this.ancestors(key, (path, last) -> modes.merge(path, last ? mode : intention, Mode::combine));
+        }
+        return new Plan(modes.keySet().toArray(new String[0]), modes.values().toArray(new Mode[0]));
+    }
+
+    /*
+     * The root, every proper prefix of the key ending before a separator, and the key itself, in this order.
+     * The empty key is the root.
+     * */
+    private void ancestors(String key, PathConsumer consumer) {
+        if (key.isEmpty()) {
+            consumer.accept(ROOT, true);
+            return;
+        }
+        consumer.accept(ROOT, false);
+        for (int i = key.indexOf(this.separator); i >= 0; i = key.indexOf(this.separator, i + 1)) {
+            consumer.accept(key.substring(0, i), false);
+        }
+        consumer.accept(key, true);
+    }
+
+    private interface PathConsumer {
+
+        void accept(String path, boolean last);
+    }
+
+    /*
+     * The paths of one call with their modes, and the nodes taken so far with the cells their holds count in.
+     * */
+    private static class Plan {
+        private final String[] paths;
+        private final Mode[] modes;
+        private final Node[] nodes;
+        private final int[] cells;
+
+        private Plan(String[] paths, Mode[] modes) {
+            this.paths = paths;
+            this.modes = modes;
+            this.nodes = new Node[paths.length];
+            this.cells = new int[paths.length];
+        }
+    }
+
+    /*
+     * One counter of holds per mode. A thread counts itself in first and then looks for conflicting holds,
+     * leaving again if there are any, so of two conflicting attempts at least one sees the other. The exclusive
+     * owner may take any mode on top of its hold: nobody else holds anything while it does.
+     * */
+    private static class Node implements PinnedMap.Pinned {
+        private final String path;
+        // by mode ordinal, attempts in progress included
+        private final AtomicLongArray holds = new AtomicLongArray(Mode.values().length);
+        private volatile Thread owner;
+        // reentrant exclusive holds, changed by the owner only
+        private int exclusiveHolds;
+        private final AtomicInteger pins = new AtomicInteger(1);
+
+        private Node(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public String key() {
+            return this.path;
+        }
+
+        @Override
+        public AtomicInteger pins() {
+            return this.pins;
+        }
+
+        /*
+         * Returns the cell the hold counts in, to be given back on unlock, or -1 if the mode is taken.
+         * */
+        private int tryLock(Mode mode) {
+            Thread current = Thread.currentThread();
+            if (this.owner == current) {
+                if (mode == Mode.EXCLUSIVE) {
+                    this.exclusiveHolds++;
+                }
+                return this.arrive(mode);
+            }
+
+            int cell = this.arrive(mode);
+            if (this.isTaken(mode)) {
+                this.depart(mode, cell);
+                return -1;
+            }
+            if (mode == Mode.EXCLUSIVE) {
+                this.exclusiveHolds = 1;
+                this.owner = current;
+            }
+            return cell;
+        }
+
+        private void unlock(Mode mode, int cell) {
+            if (mode == Mode.EXCLUSIVE && --this.exclusiveHolds == 0) {
+                this.owner = null;
+            }
+            this.depart(mode, cell);
+        }
+
+        private boolean isTaken(Mode mode) {
+            for (Mode conflict : mode.conflicts) {
+                if (this.isHeld(conflict)) {
+                    return true;
+                }
+            }
+            // an exclusive attempt counts itself
+            return mode == Mode.EXCLUSIVE && this.holds.get(Mode.EXCLUSIVE.ordinal()) != 1;
+        }
+
+        private boolean isHeld() {
+            for (Mode mode : Mode.values()) {
+                if (this.isHeld(mode)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int arrive(Mode mode) {
+            this.holds.getAndIncrement(mode.ordinal());
+            return 0;
+        }
+
+        void depart(Mode mode, int cell) {
+            this.holds.getAndDecrement(mode.ordinal());
+        }
+
+        boolean isHeld(Mode mode) {
+            return this.holds.get(mode.ordinal()) != 0;
+        }
+    }
+
+    /*
+     * Every keyed call takes an intention lock on the root, so those holds are spread over the cells of a
+     * ReaderIndicator instead of one contended counter; only a lock of the root itself reads all the cells.
+     * */
+    private static class Root extends Node {
+        private final ReaderIndicator intentionShared = new ReaderIndicator(ROOT_STRIPES);
+        private final ReaderIndicator intentionExclusive = new ReaderIndicator(ROOT_STRIPES);
+
+        private Root() {
+            super(ROOT);
+        }
+
+        @Override
+        int arrive(Mode mode) {
+            switch (mode) {
+                case INTENTION_SHARED:
+                    return this.intentionShared.arrive();
+                case INTENTION_EXCLUSIVE:
+                    return this.intentionExclusive.arrive();
+                default:
+                    return super.arrive(mode);
+            }
+        }
+
+        @Override
+        void depart(Mode mode, int cell) {
+            switch (mode) {
+                case INTENTION_SHARED:
+                    this.intentionShared.depart(cell);
+                    break;
+                case INTENTION_EXCLUSIVE:
+                    this.intentionExclusive.depart(cell);
+                    break;
+                default:
+                    super.depart(mode, cell);
+            }
+        }
+
+        @Override
+        boolean isHeld(Mode mode) {
+            switch (mode) {
+                case INTENTION_SHARED:
+                    return !this.intentionShared.isEmpty();
+                case INTENTION_EXCLUSIVE:
+                    return !this.intentionExclusive.isEmpty();
+                default:
+                    return super.isHeld(mode);
+            }
+        }
+    }
+
+    public class HLockedKeys implements LockedKeys {
+        private final Plan plan;
+        private boolean released;
+
+        private HLockedKeys(Plan plan) {
+            this.plan = plan;
+        }
+
+        @Override
+        public void close() {
+            this.release();
+        }
+
+        @Override
+        public void release() {
+            if (this.released) {
+                return;
+            }
+            HierarchicalLocalLocker.this.unlock(this.plan, this.plan.paths.length);
+            this.released = true;
+        }
+
+        @Override
+        public String toString() {
+            String result = "Locked keys: ";
+            for (int i = 0; i < this.plan.paths.length; i++) {
+                result = result.concat(this.plan.paths[i]).concat(" (").concat(this.plan.modes[i].name()).concat("); ");
+            }
+            return result;
+        }
+    }
+
+}
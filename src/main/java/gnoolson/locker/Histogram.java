@@ -0,0 +1,111 @@
+package gnoolson.locker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of non-negative values on a log-linear scale, in the manner of HdrHistogram: every power
+ * of two is split into 16 buckets, so a reported value is at most 1/16 above the recorded one. Recording is
+ * lock free and takes one atomic increment; reads are not atomic snapshots.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(index(value));
+        long max = this.max.get();
+        while (value > max && !this.max.compareAndSet(max, value)) {
+            max = this.max.get();
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public double getMean() {
+        long count = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = this.counts.get(i);
+            if (n != 0) {
+                count += n;
+                sum += n * (double) ((lowestValue(i) + highestValue(i)) / 2);
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return a value at least as large as the given percentage of the recorded values, 0 if there are none
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = this.getCount();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.max.set(0);
+    }
+
+    /*
+     * Values below 16 have a bucket each; above, the exponent picks a group of 16 buckets
+     * and the next 4 bits below the leading one pick the bucket within the group.
+     * */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return lowestValue(index) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,120 @@
+package gnoolson.locker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Locker} over keys of any type, for example the domain objects guarded by the locks, instead of
+ * Strings built from them. Keys must not change while they are locked.
+ *
+ * @param <K> compared with equals and hashCode, or with the {@link HashingStrategy} of the implementation
+ */
+public interface KeyLocker<K> {
+
+    // implementations only read the key arrays, so generic varargs can not pollute the heap
+    @SuppressWarnings("unchecked")
+    Locker.LockedKeys lockKeys(K... keys);
+
+    /**
+     * A single exclusive key, without the array of {@link #lockKeys(Object[])}.
+     */
+    Locker.LockedKeys lockKey(K key);
+
+    /**
+     * Locks the keys in shared mode: other shared holders of the same keys are admitted, exclusive ones are not.
+     */
+    @SuppressWarnings("unchecked")
+    Locker.LockedKeys lockKeysShared(K... keys);
+
+    /**
+     * Single attempt that never waits.
+     *
+     * @return the locked keys, or null if any of them (or the global lock) is held by someone else
+     */
+    @SuppressWarnings("unchecked")
+    Locker.LockedKeys tryLockKeys(K... keys);
+
+    /**
+     * @return the locked keys, or null if they could not be locked in time
+     */
+    @SuppressWarnings("unchecked")
+    Locker.LockedKeys tryLockKeys(long timeout, TimeUnit unit, K... keys);
+
+    /**
+     * Locks every key set of a batch, each as {@link #lockKeys(Object[])} would, and returns their handles in
+     * the same order, to be released one by one. Sets found taken are retried while the others stay locked,
+     * so batches running at the same time should not overlap; the sets of one batch may, like nested locks.
+     * If the batch cannot be locked in time, the sets already locked are released before the exception is thrown.
+     */
+    default List<Locker.LockedKeys> lockKeySets(Collection<K[]> keySets) {
+        List<Locker.LockedKeys> lockedKeySets = new ArrayList<>(keySets.size());
+        try {
+            for (K[] keys : keySets) {
+                lockedKeySets.add(this.lockKeys(keys));
+            }
+        } catch (RuntimeException e) {
+            lockedKeySets.forEach(Locker.LockedKeys::release);
+            throw e;
+        }
+        return lockedKeySets;
+    }
+
+    Locker.LockedKeys lock();
+
+    /**
+     * See {@link Locker#tryOptimisticRead(String...)}.
+     */
+    @SuppressWarnings("unchecked")
+    Locker.ReadStamp tryOptimisticRead(K... keys);
+
+    boolean hasLockedThreads();
+
+    /**
+     * Keys held through a handle whose keys can be adjusted while they stay locked.
+     *
+     * @param <K> the key type of the locker
+     */
+    interface AdjustableKeys<K> extends Locker.LockedKeys {
+
+        /**
+         * Turns exclusive keys into shared ones in one step, so no exclusive holder can get in between.
+         * Shared keys stay as they are.
+         */
+        void downgrade();
+
+        /**
+         * Turns shared keys into exclusive ones if the calling thread is their only holder. Never waits, so two
+         * shared holders upgrading at the same time can not deadlock: both fail and the keys stay shared.
+         *
+         * @return true if the keys are exclusive now
+         */
+        boolean tryUpgrade();
+
+        /**
+         * Adds keys to the held ones, in the same mode, all of them or none. The keys already held are kept
+         * while the new ones are waited for, instead of being released and locked again with them.
+         */
+        @SuppressWarnings("unchecked")
+        void extend(K... keys);
+
+        /**
+         * As {@link #extend(Object[])}, but waits for the new keys at most for the timeout. Two holders extending
+         * towards each other's keys can not deadlock: the new keys are only ever tried, so at worst they time out.
+         *
+         * @return false if the new keys could not be added in time; the keys held before stay locked
+         */
+        @SuppressWarnings("unchecked")
+        boolean tryExtend(long timeout, TimeUnit unit, K... keys);
+
+        /**
+         * Releases some of the keys early, while the others stay locked. A key locked several times through
+         * this handle is released once per occurrence. Once the last key is released, so is the handle.
+         *
+         * @throws RuntimeException if any of the keys is not held through this handle; then none is released
+         */
+        @SuppressWarnings("unchecked")
+        void releaseKeys(K... keys);
+    }
+}
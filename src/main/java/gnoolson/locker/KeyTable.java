@@ -0,0 +1,112 @@
+package gnoolson.locker;
+
+/*
+ * Hash map from keys compared by a HashingStrategy; the counterpart of LongKeyTable for object keys. The caller
+ * passes the hash of the key, which is kept next to it, so neither probing nor resizing asks the strategy for
+ * it again and no entry object is allocated. Not thread safe.
+ * */
+class KeyTable<K, V> {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private final HashingStrategy<? super K> hashing;
+    private Object[] keys;
+    private int[] hashes;
+    private Object[] values;
+    private int size;
+
+    KeyTable(HashingStrategy<? super K> hashing) {
+        this.hashing = hashing;
+        this.keys = new Object[INITIAL_CAPACITY];
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.values = new Object[INITIAL_CAPACITY];
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(K key, int hash) {
+        int mask = this.keys.length - 1;
+        for (int i = index(hash, mask); this.values[i] != null; i = (i + 1) & mask) {
+            if (this.hashes[i] == hash && this.hashing.equals((K) this.keys[i], key)) {
+                return (V) this.values[i];
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The key must not be present yet.
+     * */
+    void put(K key, int hash, V value) {
+        if ((this.size + 1) * 4 > this.keys.length * 3) {
+            this.resize(this.keys.length * 2);
+        }
+        this.insert(key, hash, value);
+        this.size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    boolean remove(K key, int hash, V value) {
+        int mask = this.keys.length - 1;
+        int i = index(hash, mask);
+        while (this.values[i] != null && !(this.hashes[i] == hash && this.hashing.equals((K) this.keys[i], key))) {
+            i = (i + 1) & mask;
+        }
+        if (value == null || this.values[i] != value) {
+            return false;
+        }
+
+        // move every following entry of the cluster that may not be found anymore into the gap
+        int gap = i;
+        for (int j = (gap + 1) & mask; this.values[j] != null; j = (j + 1) & mask) {
+            int home = index(this.hashes[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                this.keys[gap] = this.keys[j];
+                this.hashes[gap] = this.hashes[j];
+                this.values[gap] = this.values[j];
+                gap = j;
+            }
+        }
+        this.keys[gap] = null;
+        this.values[gap] = null;
+        this.size--;
+
+        if (this.keys.length > INITIAL_CAPACITY && this.size * 8 < this.keys.length) {
+            this.resize(this.keys.length / 2);
+        }
+        return true;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    private void insert(Object key, int hash, Object value) {
+        int mask = this.keys.length - 1;
+        int i = index(hash, mask);
+        while (this.values[i] != null) {
+            i = (i + 1) & mask;
+        }
+        this.keys[i] = key;
+        this.hashes[i] = hash;
+        this.values[i] = value;
+    }
+
+    private void resize(int capacity) {
+        Object[] keys = this.keys;
+        int[] hashes = this.hashes;
+        Object[] values = this.values;
+        this.keys = new Object[capacity];
+        this.hashes = new int[capacity];
+        this.values = new Object[capacity];
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                this.insert(keys[i], hashes[i], values[i]);
+            }
+        }
+    }
+
+    private static int index(int hash, int mask) {
+        // hash codes of similar keys are often close to each other, which linear probing handles badly
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,118 @@
+package gnoolson.locker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+ * Sequence counters behind Locker.tryOptimisticRead. Keys are hashed onto a fixed table of slots, so the
+ * counters outlive the lock objects of idle keys. Each slot holds the number of exclusive holds in the low
+ * 32 bits and the number of exclusive releases in the high 32 bits; any exclusive lock taken after a stamp
+ * changes the slot. Two keys sharing a slot can only cause a spurious validation failure.
+ * */
+class KeyVersions {
+
+    private static final long LOCKED = 1L;
+    private static final long UNLOCKED = (1L << 32) - 1;
+    private static final long HOLDS = 0xFFFFFFFFL;
+    // each slot gets a cache line of its own
+    private static final int PADDING = 8;
+    // StampedLock.validate() issues a load fence, which is not otherwise reachable from Java 8 code
+    private static final StampedLock FENCE = new StampedLock();
+    private final AtomicLongArray slots;
+    private final AtomicLong global = new AtomicLong();
+    private final int mask;
+
+    KeyVersions(int slots) {
+        int size = slots <= 1 ? 1 : Integer.highestOneBit(slots - 1) << 1;
+        this.slots = new AtomicLongArray(size * PADDING);
+        this.mask = size - 1;
+    }
+
+    void writeLocked(String key) {
+        this.writeLocked(key.hashCode());
+    }
+
+    void writeUnlocked(String key) {
+        this.writeUnlocked(key.hashCode());
+    }
+
+    void writeLocked(int hash) {
+        this.slots.getAndAdd(this.index(hash), LOCKED);
+    }
+
+    void writeUnlocked(int hash) {
+        this.slots.getAndAdd(this.index(hash), UNLOCKED);
+    }
+
+    void globalLocked() {
+        this.global.getAndAdd(LOCKED);
+    }
+
+    void globalUnlocked() {
+        this.global.getAndAdd(UNLOCKED);
+    }
+
+    Locker.ReadStamp stamp(String... keys) {
+        return this.stamp(keys, HashingStrategy.natural());
+    }
+
+    <K> Locker.ReadStamp stamp(K[] keys, HashingStrategy<? super K> hashing) {
+        long global = this.global.get();
+        if ((global & HOLDS) != 0) {
+            return Stamp.INVALID;
+        }
+
+        int[] indexes = new int[keys.length];
+        long[] versions = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = this.index(hashing.hashCode(keys[i]));
+            versions[i] = this.slots.get(indexes[i]);
+            if ((versions[i] & HOLDS) != 0) {
+                return Stamp.INVALID;
+            }
+        }
+        return new Stamp(this, global, indexes, versions);
+    }
+
+    private int index(int h) {
+        return ((h ^ (h >>> 16)) & this.mask) * PADDING;
+    }
+
+    /*
+     *
+     *
+     * */
+    private static class Stamp implements Locker.ReadStamp {
+        private static final Stamp INVALID = new Stamp(null, 0, null, null);
+        private final KeyVersions owner;
+        private final long global;
+        private final int[] indexes;
+        private final long[] versions;
+
+        private Stamp(KeyVersions owner, long global, int[] indexes, long[] versions) {
+            this.owner = owner;
+            this.global = global;
+            this.indexes = indexes;
+            this.versions = versions;
+        }
+
+        @Override
+        public boolean validate() {
+            if (this.owner == null) {
+                return false;
+            }
+
+            FENCE.validate(0L);
+            if (this.owner.global.get() != this.global) {
+                return false;
+            }
+            for (int i = 0; i < this.indexes.length; i++) {
+                if (this.owner.slots.get(this.indexes[i]) != this.versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package gnoolson.locker;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of one locker: wait and hold time of every acquisition, retries of every attempt
+ * to acquire including the ones that timed out, and the number of timeouts. Pass an instance to the locker as its {@link LockerListener}; read it directly or
+ * through JMX after {@link #registerMBean(String)}.
+ */
+public class LockMetrics implements LockerListener, LockMetricsMBean {
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final Histogram waitTimes = new Histogram();
+    private final Histogram holdTimes = new Histogram();
+    private final Histogram retries = new Histogram();
+
+    @Override
+    public void acquired(long waitNanos, int retries) {
+        this.acquisitions.increment();
+        this.waitTimes.record(waitNanos);
+        this.retries.record(retries);
+    }
+
+    @Override
+    public void released(long holdNanos) {
+        this.releases.increment();
+        this.holdTimes.record(holdNanos);
+    }
+
+    @Override
+    public void timedOut(long waitNanos, int retries) {
+        this.timeouts.increment();
+        this.retries.record(retries);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as {@code gnoolson.locker:type=LockMetrics,name=<name>}.
+     */
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("gnoolson.locker:type=LockMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Histogram getWaitTimes() {
+        return this.waitTimes;
+    }
+
+    public Histogram getHoldTimes() {
+        return this.holdTimes;
+    }
+
+    public Histogram getRetries() {
+        return this.retries;
+    }
+
+    @Override
+    public long getAcquisitions() {
+        return this.acquisitions.sum();
+    }
+
+    @Override
+    public long getReleases() {
+        return this.releases.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return this.timeouts.sum();
+    }
+
+    @Override
+    public double getWaitTimeMean() {
+        return this.waitTimes.getMean();
+    }
+
+    @Override
+    public long getWaitTime50thPercentile() {
+        return this.waitTimes.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getWaitTime99thPercentile() {
+        return this.waitTimes.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getWaitTimeMax() {
+        return this.waitTimes.getMax();
+    }
+
+    @Override
+    public double getHoldTimeMean() {
+        return this.holdTimes.getMean();
+    }
+
+    @Override
+    public long getHoldTime50thPercentile() {
+        return this.holdTimes.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getHoldTime99thPercentile() {
+        return this.holdTimes.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getHoldTimeMax() {
+        return this.holdTimes.getMax();
+    }
+
+    @Override
+    public double getRetriesMean() {
+        return this.retries.getMean();
+    }
+
+    @Override
+    public long getRetries99thPercentile() {
+        return this.retries.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getRetriesMax() {
+        return this.retries.getMax();
+    }
+
+    @Override
+    public void reset() {
+        this.acquisitions.reset();
+        this.releases.reset();
+        this.timeouts.reset();
+        this.waitTimes.reset();
+        this.holdTimes.reset();
+        this.retries.reset();
+    }
+}
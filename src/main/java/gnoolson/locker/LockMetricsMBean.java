@@ -0,0 +1,37 @@
+package gnoolson.locker;
+
+/**
+ * JMX view of {@link LockMetrics}. Times are in nanoseconds.
+ */
+public interface LockMetricsMBean {
+
+    long getAcquisitions();
+
+    long getReleases();
+
+    long getTimeouts();
+
+    double getWaitTimeMean();
+
+    long getWaitTime50thPercentile();
+
+    long getWaitTime99thPercentile();
+
+    long getWaitTimeMax();
+
+    double getHoldTimeMean();
+
+    long getHoldTime50thPercentile();
+
+    long getHoldTime99thPercentile();
+
+    long getHoldTimeMax();
+
+    double getRetriesMean();
+
+    long getRetries99thPercentile();
+
+    long getRetriesMax();
+
+    void reset();
+}
@@ -1,13 +1,59 @@
 package gnoolson.locker;
 
-public interface Locker {
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Locks String keys. See {@link KeyLocker} for keys of other types.
+ */
+public interface Locker extends KeyLocker<String> {
 
     LockedKeys lockKeys(String... keys);
 
+    default LockedKeys lockKey(String key) {
+        return this.lockKeys(key);
+    }
+
+    /**
+     * Locks the keys in shared mode: other shared holders of the same keys are admitted,
+     * exclusive ones ({@link #lockKeys(String...)} and {@link #lock()}) are not.
+     */
+    LockedKeys lockKeysShared(String... keys);
+
+    /**
+     * Single attempt that never waits.
+     *
+     * @return the locked keys, or null if any of them (or the global lock) is held by someone else
+     */
+    LockedKeys tryLockKeys(String... keys);
+
+    /**
+     * Like {@link #lockKeys(String...)}, but gives up after the given time instead of the configured maximum
+     * lock attempt time, and without throwing.
+     *
+     * @return the locked keys, or null if they could not be locked in time
+     */
+    LockedKeys tryLockKeys(long timeout, TimeUnit unit, String... keys);
+
     LockedKeys lock();
 
+    /**
+     * Takes no lock at all: the returned stamp only remembers the state of the keys. After reading the
+     * resources behind the keys, {@link ReadStamp#validate()} tells whether an exclusive or global lock was held
+     * in the meantime; if it was, the read must be repeated, for example under {@link #lockKeysShared(String...)}.
+     */
+    ReadStamp tryOptimisticRead(String... keys);
+
     boolean hasLockedThreads();
 
+    interface ReadStamp {
+
+        /**
+         * @return false if the keys were exclusively locked when the stamp was taken or have been since.
+         * May also return false spuriously, never true wrongly.
+         */
+        boolean validate();
+    }
+
     interface LockedKeys extends AutoCloseable {
 
         void release();
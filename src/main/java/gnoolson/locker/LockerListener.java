@@ -0,0 +1,74 @@
+package gnoolson.locker;
+
+/**
+ * Receives the timings of a locker. Called on the locking thread, so an implementation must be cheap
+ * and must not throw; {@link LockMetrics} is the built-in one.
+ */
+public interface LockerListener {
+
+    /**
+     * @param waitNanos time from the call to the moment the keys were locked
+     * @param retries   number of failed attempts before the successful one
+     */
+    default void acquired(long waitNanos, int retries) {
+    }
+
+    /**
+     * @param holdNanos time from the moment the keys were locked to their release
+     */
+    default void released(long holdNanos) {
+    }
+
+    /**
+     * The keys could not be locked in time: either lockKeys() failed or a timed tryLockKeys() gave up.
+     *
+     * @param retries number of failed attempts
+     */
+    default void timedOut(long waitNanos, int retries) {
+    }
+
+    /**
+     * An attempt failed because a key was taken, and the locker waited before the next one (0 for an attempt
+     * that does not retry).
+     *
+     * @param key the key found taken; null if a global lock stood in the way of keyed ones, or the other way round
+     */
+    default void contended(String key, long waitNanos) {
+    }
+
+    /**
+     * Passes every event to each of the listeners in turn.
+     */
+    static LockerListener all(LockerListener... listeners) {
+        LockerListener[] copy = listeners.clone();
+        return new LockerListener() {
+            @Override
+            public void acquired(long waitNanos, int retries) {
+                for (LockerListener listener : copy) {
+                    listener.acquired(waitNanos, retries);
+                }
+            }
+
+            @Override
+            public void released(long holdNanos) {
+                for (LockerListener listener : copy) {
+                    listener.released(holdNanos);
+                }
+            }
+
+            @Override
+            public void timedOut(long waitNanos, int retries) {
+                for (LockerListener listener : copy) {
+                    listener.timedOut(waitNanos, retries);
+                }
+            }
+
+            @Override
+            public void contended(String key, long waitNanos) {
+                for (LockerListener listener : copy) {
+                    listener.contended(key, waitNanos);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,57 @@
+package gnoolson.locker;
+
+import java.util.Arrays;
+
+/*
+ * Helpers shared by the Locker implementations.
+ * */
+final class Locks {
+
+    private static final int MAXIMUM_STRIPES = 1 << 16;
+
+    private Locks() {
+    }
+
+    /*
+     * Nanoseconds; keeps far away deadlines from overflowing.
+     * */
+    static long boundedTimeout(long timeout) {
+        return Math.min(timeout, Long.MAX_VALUE >> 1);
+    }
+
+    static long deadline(long timeout) {
+        return System.nanoTime() + boundedTimeout(timeout);
+    }
+
+    /*
+     * The maximum lock attempt time in nanoseconds, shown in milliseconds when it is a whole number of them.
+     * */
+    static RuntimeException timeoutException(long time) {
+        return time % 1_000_000 == 0
+                ? new RuntimeException(String.format("Could not lock. Too much time to try (%dms)", time / 1_000_000))
+                : new RuntimeException(String.format("Could not lock. Too much time to try (%dns)", time));
+    }
+
+    /*
+     * Sorted and deduplicated: calls taking keys in this order never wait for each other in a cycle.
+     * */
+    static String[] canonicalOrder(String[] keys) {
+        String[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        int length = 0;
+        for (String key : sorted) {
+            if (length == 0 || !sorted[length - 1].equals(key)) {
+                sorted[length++] = key;
+            }
+        }
+        return length == sorted.length ? sorted : Arrays.copyOf(sorted, length);
+    }
+
+    /*
+     * The power of two at or above the number of stripes, up to a limit.
+     * */
+    static int tableSizeFor(int stripes) {
+        int n = Math.min(stripes, MAXIMUM_STRIPES);
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+}
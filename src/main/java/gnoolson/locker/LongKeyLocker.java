@@ -0,0 +1,15 @@
+package gnoolson.locker;
+
+/**
+ * {@link Locker} that also locks keys of a separate, numeric key space: a long key only conflicts with the same
+ * long key and with the global lock, never with a String key. Long keys are kept unboxed.
+ */
+public interface LongKeyLocker extends Locker {
+
+    LockedKeys lockKey(long key);
+
+    /**
+     * Several long keys at once, see {@link #lockKey(long)}.
+     */
+    LockedKeys lockLongKeys(long... keys);
+}
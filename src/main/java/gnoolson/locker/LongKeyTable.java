@@ -0,0 +1,101 @@
+package gnoolson.locker;
+
+/*
+ * Hash map from primitive long keys, so that looking a key up boxes nothing. Open addressing with linear
+ * probing; removal shifts the following entries back instead of leaving tombstones. Not thread safe.
+ * */
+class LongKeyTable<V> {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    LongKeyTable() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.values = new Object[INITIAL_CAPACITY];
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int mask = this.keys.length - 1;
+        for (int i = index(key, mask); this.values[i] != null; i = (i + 1) & mask) {
+            if (this.keys[i] == key) {
+                return (V) this.values[i];
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The key must not be present yet.
+     * */
+    void put(long key, V value) {
+        if ((this.size + 1) * 4 > this.keys.length * 3) {
+            this.resize(this.keys.length * 2);
+        }
+        this.insert(key, value);
+        this.size++;
+    }
+
+    boolean remove(long key, V value) {
+        int mask = this.keys.length - 1;
+        int i = index(key, mask);
+        while (this.values[i] != null && this.keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (value == null || this.values[i] != value) {
+            return false;
+        }
+
+        // move every following entry of the cluster that may not be found anymore into the gap
+        int gap = i;
+        for (int j = (gap + 1) & mask; this.values[j] != null; j = (j + 1) & mask) {
+            int home = index(this.keys[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                this.keys[gap] = this.keys[j];
+                this.values[gap] = this.values[j];
+                gap = j;
+            }
+        }
+        this.values[gap] = null;
+        this.size--;
+
+        if (this.keys.length > INITIAL_CAPACITY && this.size * 8 < this.keys.length) {
+            this.resize(this.keys.length / 2);
+        }
+        return true;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    private void insert(long key, Object value) {
+        int mask = this.keys.length - 1;
+        int i = index(key, mask);
+        while (this.values[i] != null) {
+            i = (i + 1) & mask;
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+    }
+
+    private void resize(int capacity) {
+        long[] keys = this.keys;
+        Object[] values = this.values;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                this.insert(keys[i], values[i]);
+            }
+        }
+    }
+
+    private static int index(long key, int mask) {
+        // multiplicative hashing spreads sequential ids over the whole table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,22 @@
+package gnoolson.locker;
+
+/*
+ * Behind HashingStrategy.natural(); a single instance, so that lockers can tell it from custom strategies.
+ * */
+final class NaturalHashingStrategy implements HashingStrategy<Object> {
+
+    static final NaturalHashingStrategy INSTANCE = new NaturalHashingStrategy();
+
+    private NaturalHashingStrategy() {
+    }
+
+    @Override
+    public int hashCode(Object key) {
+        return key.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object key, Object other) {
+        return key == other || key.equals(other);
+    }
+}
@@ -0,0 +1,1372 @@
+package gnoolson.locker;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link OptimisticLocalLocker} over keys of any type. Keys are compared with their own equals and hashCode,
+ * or with a {@link HashingStrategy}, so composite keys can be locked as they are instead of being turned into
+ * Strings on every call. {@link BackoffStrategy} and {@link LockerListener} see keys through their toString(),
+ * which is only called when a key is found taken or a strategy learns hold times.
+ *
+ * @param <K> must not change while locked
+ */
+public class OptimisticKeyLocker<K> implements KeyLocker<K> {
+
+    private static final String GLOBAL_LOCK_KEY = UUID.randomUUID().toString();
+    private static final String[] GLOBAL_LOCK_KEYS = {GLOBAL_LOCK_KEY};
+    static final int DEFAULT_STRIPES = Runtime.getRuntime().availableProcessors() * 4;
+    // retired XLocks kept for reuse by every stripe of the striped registries
+    private static final int SPARES_PER_STRIPE = 8;
+    private final KeyRegistry<K> registry;
+    private final KeyRegistry<String> globalRegistry = new StripedKeyRegistry<>(1, HashingStrategy.natural());
+    private final LongKeyRegistry longRegistry;
+    private final HashingStrategy<? super K> hashing;
+    private final KeyVersions versions = new KeyVersions(DEFAULT_STRIPES * 16);
+    // keyed acquisitions in flight or held, whatever the registry
+    private final ReaderIndicator keyedLocks = new ReaderIndicator(DEFAULT_STRIPES);
+    private final BackoffStrategy backoffStrategy;
+    // null when nobody listens, which keeps the clock out of the fast path
+    private final LockerListener listener;
+    // nanoseconds
+    private final long maximumLockAttemptTime;
+    private final ThreadLocal<ThreadState> threadStates = ThreadLocal.withInitial(ThreadState::new);
+    // global lock calls in progress; while there are any, only threads already holding keys may lock more
+    private final AtomicInteger pendingGlobalLocks = new AtomicInteger();
+
+    /**
+     * How the table of currently used keys is organized.
+     */
+    public enum Registry {
+        /**
+         * Hash-partitioned table; every key operation synchronizes on the lock of its stripe only.
+         * The lock objects of keys going idle are kept by their stripe and reused for the next keys.
+         */
+        STRIPED,
+        /**
+         * {@link ConcurrentHashMap} of reference counted locks; looking up an already registered key takes no lock at all.
+         * Keys are compared with their own equals and hashCode only, and lock objects are not reused.
+         */
+        CONCURRENT
+    }
+
+    /*
+     *
+     *
+     * */
+    public OptimisticKeyLocker() {
+        this(HashingStrategy.natural());
+    }
+
+    public OptimisticKeyLocker(HashingStrategy<? super K> hashing) {
+        this(BackoffStrategy.uniform(0, 5, TimeUnit.MILLISECONDS), 2000, TimeUnit.MILLISECONDS, hashing);
+    }
+
+    public OptimisticKeyLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, TimeUnit unit) {
+        this(backoffStrategy, maximumLockAttemptTime, unit, HashingStrategy.natural());
+    }
+
+    public OptimisticKeyLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, TimeUnit unit, HashingStrategy<? super K> hashing) {
+        this(backoffStrategy, unit.toNanos(maximumLockAttemptTime), Registry.STRIPED, DEFAULT_STRIPES, hashing, null);
+    }
+
+    /**
+     * @param hashing  only the natural strategy goes with {@link Registry#CONCURRENT}
+     * @param listener may be null
+     */
+    public OptimisticKeyLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, TimeUnit unit, Registry registry,
+                               HashingStrategy<? super K> hashing, LockerListener listener) {
+        this(backoffStrategy, unit.toNanos(maximumLockAttemptTime), registry, DEFAULT_STRIPES, hashing, listener);
+    }
+
+    OptimisticKeyLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, Registry registry, int stripes,
+                        HashingStrategy<? super K> hashing, LockerListener listener) {
+        if (backoffStrategy == null)
+            throw new RuntimeException("The backoff strategy is not specified");
+
+        if (maximumLockAttemptTime < 1)
+            throw new RuntimeException("The maximum lock attempt time is less than 1 ns");
+
+        if (registry == null)
+            throw new RuntimeException("The registry is not specified");
+
+        if (stripes < 1)
+            throw new RuntimeException("The number of stripes is less than 1");
+
+        if (hashing == null)
+            throw new RuntimeException("The hashing strategy is not specified");
+
+        if (registry == Registry.CONCURRENT && hashing != HashingStrategy.natural())
+            throw new RuntimeException("The concurrent registry does not support a hashing strategy");
+
+        this.backoffStrategy = backoffStrategy;
+        this.listener = listener;
+        this.maximumLockAttemptTime = Locks.boundedTimeout(maximumLockAttemptTime);
+        this.hashing = hashing;
+        this.registry = registry == Registry.CONCURRENT ? new ConcurrentKeyRegistry<>() : new StripedKeyRegistry<>(stripes, hashing);
+        this.longRegistry = new LongKeyRegistry(stripes);
+    }
+
+    @Override
+    public Locker.LockedKeys lock() {
+        return lockOrFail(true, false, null, null);
+    }
+
+    @Override
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final KeyLocker.AdjustableKeys<K> lockKeys(K... keys) {
+        return lockOrFail(false, false, keys, null);
+    }
+
+    @Override
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final KeyLocker.AdjustableKeys<K> lockKeysShared(K... keys) {
+        return lockOrFail(false, true, keys, null);
+    }
+
+    /**
+     * A reduced-allocation path, not an allocation-free one: unless the key is taken, a call allocates a small
+     * handle and no array or list. Every call gets a handle of its own, so releasing it again does nothing; a
+     * handle reused across calls could not tell a stale release from a current one. Extending the handle turns
+     * it into the one {@link #lockKeys(Object[])} returns.
+     */
+    @Override
+    public KeyLocker.AdjustableKeys<K> lockKey(K key) {
+        long start = this.listener != null ? System.nanoTime() : 0;
+        XLock xlock = this.tryLockKey(key);
+        if (xlock == null) {
+            // taken: the general path waits, retries and reports the contention
+            return lockOrFail(false, false, this.singleKey(key), null);
+        }
+        return this.newLockedKey(xlock, start);
+    }
+
+    @Override
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final KeyLocker.AdjustableKeys<K> tryLockKeys(K... keys) {
+        long start = this.listener != null ? System.nanoTime() : 0;
+        List<XLock> lockedKeys = new ArrayList<>(keys.length);
+        String conflict = tryLockAll(false, false, keys, null, lockedKeys);
+        if (conflict == null) {
+            return this.newLockedKeys(lockedKeys, false, false, start, 0);
+        }
+        if (this.listener != null) {
+            this.listener.contended(conflict == GLOBAL_LOCK_KEY ? null : conflict, 0);
+        }
+        return null;
+    }
+
+    @Override
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final KeyLocker.AdjustableKeys<K> tryLockKeys(long timeout, TimeUnit unit, K... keys) {
+        return lock(false, false, keys, null, unit.toNanos(timeout));
+    }
+
+    /**
+     * Takes the keys of all the sets still to be locked in one pass over the registry, with each stripe
+     * locked once instead of once per key, then tries the sets one by one. The sets found taken are retried
+     * together after a single backoff.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Locker.LockedKeys> lockKeySets(Collection<K[]> keySets) {
+        long start = System.nanoTime();
+        long deadline = start + this.maximumLockAttemptTime;
+        // erased to Object[] within this class, see singleKey()
+        K[][] sets = keySets.toArray((K[][]) new Object[keySets.size()][]);
+        Locker.LockedKeys[] lockedKeySets = new Locker.LockedKeys[sets.length];
+        int[] pending = new int[sets.length];
+        int pendingCount = sets.length;
+        int keyCount = 0;
+        for (int i = 0; i < sets.length; i++) {
+            pending[i] = i;
+            keyCount += sets[i].length;
+        }
+        K[] keys = (K[]) new Object[keyCount];
+        XLock[] pinned = new XLock[keyCount];
+
+        try {
+            for (int attempt = 1; ; attempt++) {
+                int size = 0;
+                for (int p = 0; p < pendingCount; p++) {
+                    K[] set = sets[pending[p]];
+                    System.arraycopy(set, 0, keys, size, set.length);
+                    size += set.length;
+                }
+                this.registry.pinAll(keys, size, pinned);
+
+                String conflict = null;
+                int stillPending = 0;
+                for (int p = 0, offset = 0; p < pendingCount; p++) {
+                    int i = pending[p];
+                    List<XLock> lockedKeys = new ArrayList<>(sets[i].length);
+                    String setConflict = this.tryLockPinned(pinned, offset, sets[i].length, lockedKeys);
+                    if (setConflict == null) {
+                        // the pins now belong to the locked keys
+                        Arrays.fill(pinned, offset, offset + sets[i].length, null);
+                        lockedKeySets[i] = this.newLockedKeys(lockedKeys, false, false, start, attempt - 1);
+                    }
+                    offset += sets[i].length;
+                    if (setConflict != null) {
+                        pending[stillPending++] = i;
+                        conflict = conflict == null ? setConflict : conflict;
+                    }
+                }
+                pendingCount = stillPending;
+                if (pendingCount == 0) {
+                    return Arrays.asList(lockedKeySets);
+                }
+
+                long now = System.nanoTime();
+                long remaining = deadline - now;
+                if (remaining <= 0) {
+                    if (this.listener != null) {
+                        this.listener.timedOut(now - start, attempt);
+                    }
+                    throw this.timeoutException();
+                }
+                this.backoff(conflict, attempt, remaining, now);
+            }
+        } catch (RuntimeException e) {
+            // timed out, interrupted while backing off or failed in the listener: the sets already locked are
+            // given back, and the keys pinned for the sets not tried yet are unpinned
+            for (Locker.LockedKeys lockedKeys : lockedKeySets) {
+                if (lockedKeys != null) {
+                    lockedKeys.release();
+                }
+            }
+            for (int i = 0; i < pinned.length; i++) {
+                if (pinned[i] != null) {
+                    this.registry.unpin(pinned[i]);
+                    pinned[i] = null;
+                }
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final Locker.ReadStamp tryOptimisticRead(K... keys) {
+        return this.versions.stamp(keys, this.hashing);
+    }
+
+    @Override
+    public boolean hasLockedThreads() {
+        return isFullLockAlreadyActive() || hasNormalLocks() || !this.registry.isEmpty() || !this.longRegistry.isEmpty();
+    }
+
+    /*
+     * Long keys live in a table of their own whatever the Registry, see OptimisticLocalLocker.lockLongKeys(long...).
+     * */
+    Locker.LockedKeys lockLongs(long[] keys) {
+        return lockOrFail(false, false, null, keys);
+    }
+
+    /*
+     * The direct path of lockKey(K) for a single long key.
+     * */
+    Locker.LockedKeys lockLong(long key) {
+        long start = this.listener != null ? System.nanoTime() : 0;
+        XLock xlock = this.tryLockLong(key);
+        if (xlock == null) {
+            return lockOrFail(false, false, null, new long[]{key});
+        }
+        return this.newLockedKey(xlock, start);
+    }
+
+    /*
+     *
+     *
+     * */
+    private XLockedKeys lockOrFail(boolean globalLock, boolean shared, K[] keys, long[] longKeys) {
+        XLockedKeys lockedKeys = lock(globalLock, shared, keys, longKeys, this.maximumLockAttemptTime);
+        if (lockedKeys == null) {
+            throw this.timeoutException();
+        }
+        return lockedKeys;
+    }
+
+    /*
+     * Locks the global lock, the keys or the long keys. Returns null once the timeout has passed.
+     *
+     * A global lock announces itself first: new keyed locks then back off, and the global lock only waits for
+     * the keyed locks already held to be released, however busy the keys are. A thread holding keys itself
+     * is not announced, as it would only keep everybody else waiting for its own keys.
+     * */
+    private XLockedKeys lock(boolean globalLock, boolean shared, K[] keys, long[] longKeys, long timeout) {
+        if (!globalLock || this.threadStates.get().holds != 0) {
+            return this.acquire(globalLock, shared, keys, longKeys, timeout);
+        }
+
+        this.pendingGlobalLocks.incrementAndGet();
+        try {
+            return this.acquire(true, shared, keys, longKeys, timeout);
+        } finally {
+            this.pendingGlobalLocks.decrementAndGet();
+        }
+    }
+
+    private XLockedKeys acquire(boolean globalLock, boolean shared, K[] keys, long[] longKeys, long timeout) {
+        // everything counts against the deadline: the attempts themselves as well as the waits and their oversleep
+        long start = System.nanoTime();
+        long deadline = start + Locks.boundedTimeout(timeout);
+        List<XLock> lockedKeys = new ArrayList<>(globalLock ? 1 : keys != null ? keys.length : longKeys.length);
+
+        for (int attempt = 1; ; attempt++) {
+            String conflict = tryLockAll(globalLock, shared, keys, longKeys, lockedKeys);
+            if (conflict == null) {
+                return this.newLockedKeys(lockedKeys, globalLock, shared, start, attempt - 1);
+            }
+
+            long now = System.nanoTime();
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+                if (this.listener != null) {
+                    this.listener.timedOut(now - start, attempt);
+                }
+                return null;
+            }
+            this.backoff(conflict, attempt, remaining, now);
+        }
+    }
+
+    private void backoff(String conflict, int attempt, long remaining, long now) {
+        this.backoffStrategy.backoff(conflict, attempt, remaining);
+        if (this.listener != null) {
+            this.listener.contended(conflict == GLOBAL_LOCK_KEY ? null : conflict, System.nanoTime() - now);
+        }
+    }
+
+    /*
+     * Takes every key or none of them. Returns null on success, otherwise the key found taken,
+     * or the global lock key if the other side (global or keyed) was in the way.
+     * */
+    private String tryLockAll(boolean globalLock, boolean shared, K[] keys, long[] longKeys, List<XLock> lockedKeys) {
+        if (globalLock) {
+            return tryLockAll(this.globalRegistry, true, false, GLOBAL_LOCK_KEYS, lockedKeys);
+        }
+        if (keys == null) {
+            return tryLockAll(longKeys, lockedKeys);
+        }
+        return tryLockAll(this.registry, false, shared, keys, lockedKeys);
+    }
+
+    /*
+     * One exclusive key, as tryLockAll would take it; null if the key or the global lock is taken.
+     * */
+    private XLock tryLockKey(K key) {
+        if (!this.arrive()) {
+            return null;
+        }
+
+        XLock xlock = this.registry.pin(key);
+        if (!xlock.tryLock(false)) {
+            this.registry.unpin(xlock);
+            this.keyedLocks.depart();
+            return null;
+        }
+        versionLocked(false, false, xlock);
+        return xlock;
+    }
+
+    private XLock tryLockLong(long key) {
+        if (!this.arrive()) {
+            return null;
+        }
+
+        XLock xlock = this.longRegistry.pin(key);
+        if (!xlock.tryLock(false)) {
+            this.longRegistry.unpin(xlock);
+            this.keyedLocks.depart();
+            return null;
+        }
+        return xlock;
+    }
+
+    private <T> String tryLockAll(KeyRegistry<T> registry, boolean globalLock, boolean shared, T[] keys, List<XLock> lockedKeys) {
+        lockedKeys.clear();
+
+        if (globalLock ? hasConflictingLocks(true) : !this.arrive()) {
+            return GLOBAL_LOCK_KEY;
+        }
+
+        for (T key : keys) {
+            XLock xlock = registry.pin(key);
+            if (!xlock.tryLock(shared)) {
+                registry.unpin(xlock);
+                unlockLockedKeys(lockedKeys, globalLock, shared);
+                return String.valueOf(key);
+            }
+            lockedKeys.add(xlock);
+            versionLocked(globalLock, shared, xlock);
+        }
+
+        // The global lock is published before the keyed locks are checked, see arrive()
+        if (globalLock && hasConflictingLocks(true)) {
+            unlockLockedKeys(lockedKeys, true, false);
+            return GLOBAL_LOCK_KEY;
+        }
+        return null;
+    }
+
+    /*
+     * Exclusive long keys; the global lock is checked on arrival as for other keys.
+     * */
+    private String tryLockAll(long[] keys, List<XLock> lockedKeys) {
+        lockedKeys.clear();
+
+        if (!this.arrive()) {
+            return GLOBAL_LOCK_KEY;
+        }
+
+        for (long key : keys) {
+            XLock xlock = this.longRegistry.pin(key);
+            if (!xlock.tryLock(false)) {
+                this.longRegistry.unpin(xlock);
+                unlockLockedKeys(lockedKeys, false, false);
+                return Long.toString(key);
+            }
+            lockedKeys.add(xlock);
+        }
+        return null;
+    }
+
+    /*
+     * One set of a batch, over the XLocks pinned for it; every pin is either locked or dropped.
+     * */
+    private String tryLockPinned(XLock[] pinned, int from, int length, List<XLock> lockedKeys) {
+        int to = from + length;
+        if (!this.arrive()) {
+            unpin(pinned, from, to);
+            return GLOBAL_LOCK_KEY;
+        }
+
+        for (int i = from; i < to; i++) {
+            XLock xlock = pinned[i];
+            if (!xlock.tryLock(false)) {
+                // the XLock may hold another key once unpinned
+                String key = xlock.getKey();
+                unpin(pinned, i, to);
+                unlockLockedKeys(lockedKeys, false, false);
+                return key;
+            }
+            lockedKeys.add(xlock);
+            versionLocked(false, false, xlock);
+        }
+        return null;
+    }
+
+    private void unpin(XLock[] pinned, int from, int to) {
+        for (int i = from; i < to; i++) {
+            this.registry.unpin(pinned[i]);
+            pinned[i] = null;
+        }
+    }
+
+    /*
+     * Registers a keyed acquisition before the global lock is checked, while the global lock is taken before
+     * the keyed acquisitions are checked, so the two can never both pass. Checking once covers all the keys:
+     * a global lock coming later sees the acquisition until it is released.
+     * */
+    private boolean arrive() {
+        this.keyedLocks.arrive();
+        if (hasConflictingLocks(false)) {
+            this.keyedLocks.depart();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Keys whose listener call throws are unlocked again, since no handle is returned for them.
+     * */
+    private XLockedKeys newLockedKeys(List<XLock> lockedKeys, boolean globalLock, boolean shared, long start, int retries) {
+        long lockedAt;
+        try {
+            lockedAt = this.lockedAt(start, retries);
+        } catch (RuntimeException e) {
+            unlockLockedKeys(lockedKeys, globalLock, shared);
+            throw e;
+        }
+        ThreadState state = null;
+        if (!globalLock) {
+            state = this.threadStates.get();
+            state.holds++;
+        }
+        return new XLockedKeys(lockedKeys, globalLock, shared, lockedAt, state);
+    }
+
+    private XLockedKey newLockedKey(XLock xlock, long start) {
+        long lockedAt;
+        try {
+            lockedAt = this.lockedAt(start, 0);
+        } catch (RuntimeException e) {
+            // the listener threw, so there is no handle to release the key
+            versionUnlocked(false, false, xlock);
+            xlock.unlock(false);
+            this.keyedLocks.depart();
+            throw e;
+        }
+        ThreadState state = this.threadStates.get();
+        state.holds++;
+        return new XLockedKey(state, xlock, lockedAt);
+    }
+
+    private long lockedAt(long start, int retries) {
+        // the hold time is only measured for a listener or a strategy that wants it
+        if (this.listener == null && !this.backoffStrategy.learnsHoldTimes()) {
+            return 0;
+        }
+
+        long lockedAt = System.nanoTime();
+        if (this.listener != null) {
+            this.listener.acquired(lockedAt - start, retries);
+        }
+        return lockedAt;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K[] singleKey(K key) {
+        // never leaves this class, where K[] is erased to Object[]
+        return (K[]) new Object[]{key};
+    }
+
+    private RuntimeException timeoutException() {
+        return Locks.timeoutException(this.maximumLockAttemptTime);
+    }
+
+    private void release(List<XLock> lockedKeys, boolean globalLock, boolean shared, long lockedAt) {
+        if (this.listener == null && !this.backoffStrategy.learnsHoldTimes()) {
+            unlockLockedKeys(lockedKeys, globalLock, shared);
+            return;
+        }
+
+        long heldNanos = System.nanoTime() - lockedAt;
+        // before unlocking: a released XLock may be reused for another key at once
+        if (this.backoffStrategy.learnsHoldTimes()) {
+            for (XLock xlock : lockedKeys) {
+                this.backoffStrategy.released(xlock.getKey(), heldNanos);
+            }
+        }
+        unlockLockedKeys(lockedKeys, globalLock, shared);
+        if (this.listener != null) {
+            this.listener.released(heldNanos);
+        }
+    }
+
+    private void releaseKey(XLock xlock, boolean shared, long lockedAt) {
+        if (this.listener == null && !this.backoffStrategy.learnsHoldTimes()) {
+            versionUnlocked(false, shared, xlock);
+            xlock.unlock(shared);
+            this.keyedLocks.depart();
+            return;
+        }
+
+        long heldNanos = System.nanoTime() - lockedAt;
+        if (this.backoffStrategy.learnsHoldTimes()) {
+            this.backoffStrategy.released(xlock.getKey(), heldNanos);
+        }
+        versionUnlocked(false, shared, xlock);
+        xlock.unlock(shared);
+        this.keyedLocks.depart();
+        if (this.listener != null) {
+            this.listener.released(heldNanos);
+        }
+    }
+
+    /*
+     * Adds keys to a held set; only the new keys are retried, the held ones are kept throughout.
+     * */
+    private boolean extend(List<XLock> lockedKeys, boolean shared, K[] keys, long timeout) {
+        long start = System.nanoTime();
+        long deadline = start + Locks.boundedTimeout(timeout);
+        List<XLock> addedKeys = new ArrayList<>(keys.length);
+
+        for (int attempt = 1; ; attempt++) {
+            String conflict = tryLockAll(this.registry, false, shared, keys, addedKeys);
+            if (conflict == null) {
+                // part of the acquisition already registered, which departs once on release
+                this.keyedLocks.depart();
+                lockedKeys.addAll(addedKeys);
+                return true;
+            }
+
+            long now = System.nanoTime();
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+                if (this.listener != null) {
+                    this.listener.timedOut(now - start, attempt);
+                }
+                return false;
+            }
+            this.backoff(conflict, attempt, remaining, now);
+        }
+    }
+
+    /*
+     * Releases one hold of each of the keys, which must all be held; the released XLocks leave the list.
+     * */
+    private void releaseKeys(List<XLock> lockedKeys, boolean shared, K[] keys, long lockedAt) {
+        boolean[] released = new boolean[lockedKeys.size()];
+        for (K key : keys) {
+            int i = 0;
+            while (i < released.length && (released[i] || !this.holds(lockedKeys.get(i), key))) {
+                i++;
+            }
+            if (i == released.length)
+                throw new RuntimeException(String.format("The key %s is not locked", key));
+
+            released[i] = true;
+        }
+
+        List<XLock> releasedKeys = new ArrayList<>(keys.length);
+        for (int i = released.length - 1; i >= 0; i--) {
+            if (released[i]) {
+                releasedKeys.add(lockedKeys.remove(i));
+            }
+        }
+        // before unlocking: a released XLock may be reused for another key at once
+        if (this.backoffStrategy.learnsHoldTimes()) {
+            long heldNanos = System.nanoTime() - lockedAt;
+            for (XLock xlock : releasedKeys) {
+                this.backoffStrategy.released(xlock.getKey(), heldNanos);
+            }
+        }
+        for (XLock xlock : releasedKeys) {
+            versionUnlocked(false, shared, xlock);
+            xlock.unlock(shared);
+        }
+    }
+
+    private boolean holds(XLock xlock, K key) {
+        // long keys have no key object and never match
+        @SuppressWarnings("unchecked")
+        K lockedKey = (K) xlock.key;
+        return lockedKey != null && xlock.hash == this.hashing.hashCode(key) && this.hashing.equals(lockedKey, key);
+    }
+
+    /*
+     * Exclusive to shared, without a moment in which the keys are free.
+     * */
+    private void downgrade(List<XLock> lockedKeys) {
+        for (XLock lockedKey : lockedKeys) {
+            versionUnlocked(false, false, lockedKey);
+            lockedKey.downgrade();
+        }
+    }
+
+    /*
+     * Shared to exclusive, every key or none of them.
+     * */
+    private boolean tryUpgrade(List<XLock> lockedKeys) {
+        for (int i = 0; i < lockedKeys.size(); i++) {
+            if (!lockedKeys.get(i).tryUpgrade()) {
+                for (int j = 0; j < i; j++) {
+                    lockedKeys.get(j).downgrade();
+                }
+                return false;
+            }
+        }
+        for (XLock lockedKey : lockedKeys) {
+            versionLocked(false, false, lockedKey);
+        }
+        return true;
+    }
+
+    /*
+     * Ends a keyed acquisition, failed or released.
+     * */
+    private void unlockLockedKeys(List<XLock> lockedKeys, boolean globalLock, boolean shared) {
+        for (XLock lockedKey : lockedKeys) {
+            versionUnlocked(globalLock, shared, lockedKey);
+            lockedKey.unlock(shared);
+        }
+        if (!globalLock) {
+            this.keyedLocks.depart();
+        }
+    }
+
+    private void versionLocked(boolean globalLock, boolean shared, XLock xlock) {
+        if (shared) {
+            return;
+        }
+        if (globalLock) {
+            this.versions.globalLocked();
+        } else if (xlock.key != null) {
+            // long keys have no optimistic reads, and would only invalidate the stamps of keys sharing a slot
+            this.versions.writeLocked(xlock.hash);
+        }
+    }
+
+    private void versionUnlocked(boolean globalLock, boolean shared, XLock xlock) {
+        if (shared) {
+            return;
+        }
+        if (globalLock) {
+            this.versions.globalUnlocked();
+        } else if (xlock.key != null) {
+            this.versions.writeUnlocked(xlock.hash);
+        }
+    }
+
+    private boolean hasConflictingLocks(boolean globalLock) {
+        return globalLock ? hasNormalLocks() : isFullLockAlreadyActive() || isGlobalLockPending();
+    }
+
+    private boolean isGlobalLockPending() {
+        // the thread local is only looked up while a global lock is pending
+        return this.pendingGlobalLocks.get() != 0 && this.threadStates.get().holds == 0;
+    }
+
+    private boolean isFullLockAlreadyActive() {
+        return !this.globalRegistry.isEmpty();
+    }
+
+    private boolean hasNormalLocks() {
+        return !this.keyedLocks.isEmpty();
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * A registered XLock is pinned once per holder and once per attempt in flight.
+     * It leaves the registry when the last pin is dropped.
+     * */
+    private interface XLockRegistry {
+
+        void unpin(XLock xlock);
+
+        boolean isEmpty();
+    }
+
+    private interface KeyRegistry<T> extends XLockRegistry {
+
+        XLock pin(T key);
+
+        /*
+         * Pins the first size keys into pinned, at the same positions.
+         * */
+        default void pinAll(T[] keys, int size, XLock[] pinned) {
+            for (int i = 0; i < size; i++) {
+                pinned[i] = this.pin(keys[i]);
+            }
+        }
+    }
+
+    private static class StripedKeyRegistry<T> implements KeyRegistry<T> {
+        private final Stripe<T>[] stripes;
+        private final HashingStrategy<? super T> hashing;
+
+        @SuppressWarnings("unchecked")
+        private StripedKeyRegistry(int stripes, HashingStrategy<? super T> hashing) {
+            this.stripes = (Stripe<T>[]) new Stripe<?>[Locks.tableSizeFor(stripes)];
+            this.hashing = hashing;
+            for (int i = 0; i < this.stripes.length; i++) {
+                this.stripes[i] = new Stripe<>(hashing);
+            }
+        }
+
+        @Override
+        public XLock pin(T key) {
+            int hash = this.hashing.hashCode(key);
+            Stripe<T> stripe = this.stripe(hash);
+            stripe.lock.lock();
+            try {
+                return this.pin(stripe, key, hash);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        /*
+         * Sorts the keys by stripe, so every stripe is locked once for all of its keys.
+         * */
+        @Override
+        public void pinAll(T[] keys, int size, XLock[] pinned) {
+            int[] hashes = new int[size];
+            // the stripe in the high half, the position of the key in the low half
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                hashes[i] = this.hashing.hashCode(keys[i]);
+                order[i] = (long) this.stripeIndex(hashes[i]) << 32 | i;
+            }
+            Arrays.sort(order);
+
+            for (int next = 0; next < size; ) {
+                int stripeIndex = (int) (order[next] >>> 32);
+                Stripe<T> stripe = this.stripes[stripeIndex];
+                stripe.lock.lock();
+                try {
+                    do {
+                        int i = (int) order[next++];
+                        pinned[i] = this.pin(stripe, keys[i], hashes[i]);
+                    } while (next < size && (int) (order[next] >>> 32) == stripeIndex);
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+
+        private XLock pin(Stripe<T> stripe, T key, int hash) {
+            XLock xlock = stripe.keys.get(key, hash);
+            if (xlock == null) {
+                xlock = stripe.spares.take();
+                if (xlock == null) {
+                    xlock = new XLock(key, hash, this);
+                } else {
+                    xlock.reuse(key, hash);
+                }
+                stripe.keys.put(key, hash, xlock);
+                stripe.size = stripe.keys.size();
+            } else {
+                xlock.pins.incrementAndGet();
+            }
+            return xlock;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void unpin(XLock xlock) {
+            if (xlock.pins.decrementAndGet() != 0) {
+                return;
+            }
+
+            Stripe<T> stripe = this.stripe(xlock.hash);
+            stripe.lock.lock();
+            try {
+                // pins only grow under the stripe lock, so a zero seen here is final
+                if (xlock.pins.compareAndSet(0, -1) && stripe.keys.remove((T) xlock.key, xlock.hash, xlock)) {
+                    stripe.size = stripe.keys.size();
+                    stripe.spares.put(xlock);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            for (Stripe<T> stripe : this.stripes) {
+                if (stripe.size != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Stripe<T> stripe(int hash) {
+            return this.stripes[this.stripeIndex(hash)];
+        }
+
+        private int stripeIndex(int hash) {
+            return spread(hash) & (this.stripes.length - 1);
+        }
+    }
+
+    private static class Stripe<T> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final KeyTable<T, XLock> keys;
+        private final Spares spares = new Spares();
+        // mirrors keys.size() so the global lock check can read it without taking the lock
+        private volatile int size;
+
+        private Stripe(HashingStrategy<? super T> hashing) {
+            this.keys = new KeyTable<>(hashing);
+        }
+    }
+
+    private static class ConcurrentKeyRegistry<T> implements KeyRegistry<T> {
+        private final ConcurrentHashMap<T, XLock> keys = new ConcurrentHashMap<>();
+
+        @Override
+        public XLock pin(T key) {
+            XLock xlock = this.keys.get(key);
+            if (xlock != null && xlock.tryPin()) {
+                return xlock;
+            }
+
+            return this.keys.compute(key, (_key, value) -> {
+                if (value == null || !value.tryPin()) {
+                    value = new XLock(_key, _key.hashCode(), this);
+                }
+                return value;
+            });
+        }
+
+        @Override
+        public void unpin(XLock xlock) {
+            if (xlock.pins.decrementAndGet() == 0 && xlock.pins.compareAndSet(0, -1)) {
+                this.keys.remove(xlock.key, xlock);
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return this.keys.isEmpty();
+        }
+    }
+
+    /*
+     * Striped like StripedKeyRegistry, with a primitive table per stripe.
+     * */
+    private static class LongKeyRegistry implements XLockRegistry {
+        private final LongStripe[] stripes;
+
+        private LongKeyRegistry(int stripes) {
+            this.stripes = new LongStripe[Locks.tableSizeFor(stripes)];
+            for (int i = 0; i < this.stripes.length; i++) {
+                this.stripes[i] = new LongStripe();
+            }
+        }
+
+        public XLock pin(long key) {
+            LongStripe stripe = this.stripe(key);
+            stripe.lock.lock();
+            try {
+                XLock xlock = stripe.keys.get(key);
+                if (xlock == null) {
+                    xlock = stripe.spares.take();
+                    if (xlock == null) {
+                        xlock = new XLock(key, this);
+                    } else {
+                        xlock.reuse(key);
+                    }
+                    stripe.keys.put(key, xlock);
+                    stripe.size = stripe.keys.size();
+                } else {
+                    xlock.pins.incrementAndGet();
+                }
+                return xlock;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        @Override
+        public void unpin(XLock xlock) {
+            if (xlock.pins.decrementAndGet() != 0) {
+                return;
+            }
+
+            LongStripe stripe = this.stripe(xlock.longKey);
+            stripe.lock.lock();
+            try {
+                // pins only grow under the stripe lock, so a zero seen here is final
+                if (xlock.pins.compareAndSet(0, -1) && stripe.keys.remove(xlock.longKey, xlock)) {
+                    stripe.size = stripe.keys.size();
+                    stripe.spares.put(xlock);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            for (LongStripe stripe : this.stripes) {
+                if (stripe.size != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private LongStripe stripe(long key) {
+            return this.stripes[spread(Long.hashCode(key)) & (this.stripes.length - 1)];
+        }
+    }
+
+    private static class LongStripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LongKeyTable<XLock> keys = new LongKeyTable<>();
+        private final Spares spares = new Spares();
+        // mirrors keys.size() so the global lock check can read it without taking the lock
+        private volatile int size;
+    }
+
+    /*
+     * Retired XLocks of a stripe, guarded by the stripe lock. A retired XLock is unlocked and out of the table,
+     * and only the stripe lock hands out XLocks, so nobody can still be about to pin it when it is reused.
+     * Not so for ConcurrentKeyRegistry, whose lookups may pin a retired XLock and fail on it.
+     * */
+    private static class Spares {
+        private final XLock[] xlocks = new XLock[SPARES_PER_STRIPE];
+        private int size;
+
+        private XLock take() {
+            if (this.size == 0) {
+                return null;
+            }
+            XLock xlock = this.xlocks[--this.size];
+            this.xlocks[this.size] = null;
+            return xlock;
+        }
+
+        private void put(XLock xlock) {
+            if (this.size < this.xlocks.length) {
+                // the key may be collected while the XLock waits here
+                xlock.key = null;
+                this.xlocks[this.size++] = xlock;
+            }
+        }
+    }
+
+    private static class XLock {
+        private final ReentrantReadWriteLock rl = new ReentrantReadWriteLock();
+        // null for a long key; key, longKey and hash only change under the stripe lock, while retired
+        private Object key;
+        private long longKey;
+        // as given by the hashing strategy, for the registry and the versions
+        private int hash;
+        private final XLockRegistry registry;
+        // holders plus attempts in flight; -1 once retired from the registry
+        private final AtomicInteger pins = new AtomicInteger(1);
+        // the thread turning its read hold into a write hold, see tryUpgrade()
+        private final AtomicReference<Thread> upgrader = new AtomicReference<>();
+
+        public XLock(Object key, int hash, XLockRegistry registry) {
+            this.key = key;
+            this.longKey = 0;
+            this.hash = hash;
+            this.registry = registry;
+        }
+
+        public XLock(long key, XLockRegistry registry) {
+            this.key = null;
+            this.longKey = key;
+            this.hash = Long.hashCode(key);
+            this.registry = registry;
+        }
+
+        public void reuse(Object key, int hash) {
+            this.key = key;
+            this.hash = hash;
+            this.pins.set(1);
+        }
+
+        public void reuse(long key) {
+            this.longKey = key;
+            this.hash = Long.hashCode(key);
+            this.pins.set(1);
+        }
+
+        public boolean tryPin() {
+            return PinnedMap.tryPin(this.pins);
+        }
+
+        public boolean tryLock(boolean shared) {
+            if (!(shared ? this.rl.readLock().tryLock() : this.rl.writeLock().tryLock())) {
+                return false;
+            }
+            // an upgrade has checked the holders before, so it counts on this one stepping back
+            if (this.upgrader.get() != null) {
+                this.unlockHold(shared);
+                return false;
+            }
+            return true;
+        }
+
+        public void unlock(boolean shared) {
+            this.unlockHold(shared);
+            this.registry.unpin(this);
+        }
+
+        public void downgrade() {
+            // a read lock is always granted to the writer
+            this.rl.readLock().lock();
+            this.rl.writeLock().unlock();
+        }
+
+        /*
+         * Turns the read hold of the current thread into a write hold, if it is the only hold of the key. The
+         * read lock must be given up before the write lock can be taken; whoever locks the key in that gap
+         * sees the upgrader and lets go at once, so the write lock is only waited for that long.
+         * */
+        public boolean tryUpgrade() {
+            if (this.rl.isWriteLockedByCurrentThread()) {
+                // held exclusively through another handle as well
+                this.rl.writeLock().lock();
+                this.rl.readLock().unlock();
+                return true;
+            }
+            if (this.rl.getReadHoldCount() != 1 || !this.upgrader.compareAndSet(null, Thread.currentThread())) {
+                return false;
+            }
+
+            try {
+                if (this.rl.getReadLockCount() != 1) {
+                    return false;
+                }
+                this.rl.readLock().unlock();
+                while (!this.rl.writeLock().tryLock()) {
+                    Thread.yield();
+                }
+                return true;
+            } finally {
+                this.upgrader.set(null);
+            }
+        }
+
+        private void unlockHold(boolean shared) {
+            if (shared) {
+                this.rl.readLock().unlock();
+            } else {
+                this.rl.writeLock().unlock();
+            }
+        }
+
+        public String getKey() {
+            return this.key != null ? String.valueOf(this.key) : Long.toString(this.longKey);
+        }
+    }
+
+    public class XLockedKeys implements KeyLocker.AdjustableKeys<K> {
+        private final List<XLock> locks;
+        private final boolean global;
+        // changed by downgrade() and tryUpgrade()
+        private boolean shared;
+        private final long lockedAt;
+        // of the locking thread; null for the global lock
+        private final ThreadState state;
+        // the XLocks may belong to other keys once released
+        private boolean released;
+
+        private XLockedKeys(List<XLock> locks, boolean global, boolean shared, long lockedAt, ThreadState state) {
+            this.locks = locks;
+            this.global = global;
+            this.shared = shared;
+            this.lockedAt = lockedAt;
+            this.state = state;
+        }
+
+        @Override
+        public void close() {
+            this.release();
+        }
+
+        @Override
+        public void release() {
+            if (this.released) {
+                return;
+            }
+            OptimisticKeyLocker.this.release(this.locks, this.global, this.shared, this.lockedAt);
+            this.released = true;
+            if (this.state != null) {
+                this.state.holds--;
+            }
+        }
+
+        @Override
+        public void downgrade() {
+            this.checkKeyed();
+            if (!this.shared) {
+                OptimisticKeyLocker.this.downgrade(this.locks);
+                this.shared = true;
+            }
+        }
+
+        @Override
+        public boolean tryUpgrade() {
+            this.checkKeyed();
+            if (this.shared && OptimisticKeyLocker.this.tryUpgrade(this.locks)) {
+                this.shared = false;
+            }
+            return !this.shared;
+        }
+
+        @Override
+        @SafeVarargs
+        @SuppressWarnings("varargs")
+        public final void extend(K... keys) {
+            if (!this.tryExtend(OptimisticKeyLocker.this.maximumLockAttemptTime, TimeUnit.NANOSECONDS, keys)) {
+                throw OptimisticKeyLocker.this.timeoutException();
+            }
+        }
+
+        @Override
+        @SafeVarargs
+        @SuppressWarnings("varargs")
+        public final boolean tryExtend(long timeout, TimeUnit unit, K... keys) {
+            this.checkKeyed();
+            return OptimisticKeyLocker.this.extend(this.locks, this.shared, keys, unit.toNanos(timeout));
+        }
+
+        @Override
+        @SafeVarargs
+        @SuppressWarnings("varargs")
+        public final void releaseKeys(K... keys) {
+            this.checkKeyed();
+            OptimisticKeyLocker.this.releaseKeys(this.locks, this.shared, keys, this.lockedAt);
+            if (this.locks.isEmpty()) {
+                this.release();
+            }
+        }
+
+        private void checkKeyed() {
+            if (this.global)
+                throw new UnsupportedOperationException("The global lock can not be changed");
+
+            if (this.released)
+                throw new RuntimeException("The keys are already released");
+        }
+
+        @Override
+        public String toString() {
+            String result = "Locked keys: ";
+            for (XLock xLock : this.locks) {
+                result = result.concat(xLock.getKey()).concat("; ");
+            }
+            return result;
+        }
+    }
+
+    /*
+     * What the locker knows of one thread: how many keyed handles it holds. XLocks are bound to their thread,
+     * so only that thread changes it.
+     * */
+    private static class ThreadState {
+        private int holds;
+    }
+
+    public class XLockedKey implements KeyLocker.AdjustableKeys<K> {
+        // of the locking thread
+        private final ThreadState state;
+        private final long lockedAt;
+        // null once released or promoted
+        private XLock xlock;
+        private boolean shared;
+        // takes over once the handle was extended
+        private XLockedKeys promoted;
+
+        private XLockedKey(ThreadState state, XLock xlock, long lockedAt) {
+            this.state = state;
+            this.xlock = xlock;
+            this.lockedAt = lockedAt;
+        }
+
+        @Override
+        public void close() {
+            this.release();
+        }
+
+        /*
+         * The lock is bound to its thread, so a release that got past the unlock runs on the locking thread.
+         * */
+        @Override
+        public void release() {
+            if (this.promoted != null) {
+                this.promoted.release();
+                return;
+            }
+            XLock xlock = this.xlock;
+            if (xlock == null) {
+                return;
+            }
+            OptimisticKeyLocker.this.releaseKey(xlock, this.shared, this.lockedAt);
+            this.xlock = null;
+            this.state.holds--;
+        }
+
+        @Override
+        public void downgrade() {
+            if (this.promoted != null) {
+                this.promoted.downgrade();
+                return;
+            }
+            XLock xlock = this.checkLocked();
+            if (!this.shared) {
+                OptimisticKeyLocker.this.versionUnlocked(false, false, xlock);
+                xlock.downgrade();
+                this.shared = true;
+            }
+        }
+
+        @Override
+        public boolean tryUpgrade() {
+            if (this.promoted != null) {
+                return this.promoted.tryUpgrade();
+            }
+            XLock xlock = this.checkLocked();
+            if (this.shared && xlock.tryUpgrade()) {
+                OptimisticKeyLocker.this.versionLocked(false, false, xlock);
+                this.shared = false;
+            }
+            return !this.shared;
+        }
+
+        @Override
+        @SafeVarargs
+        @SuppressWarnings("varargs")
+        public final void extend(K... keys) {
+            this.promote().extend(keys);
+        }
+
+        @Override
+        @SafeVarargs
+        @SuppressWarnings("varargs")
+        public final boolean tryExtend(long timeout, TimeUnit unit, K... keys) {
+            return this.promote().tryExtend(timeout, unit, keys);
+        }
+
+        @Override
+        @SafeVarargs
+        @SuppressWarnings("varargs")
+        public final void releaseKeys(K... keys) {
+            if (this.promoted != null) {
+                this.promoted.releaseKeys(keys);
+                return;
+            }
+            XLock xlock = this.checkLocked();
+            for (int i = 0; i < keys.length; i++) {
+                if (i > 0 || !OptimisticKeyLocker.this.holds(xlock, keys[i]))
+                    throw new RuntimeException(String.format("The key %s is not locked", keys[i]));
+            }
+            if (keys.length == 1) {
+                this.release();
+            }
+        }
+
+        /*
+         * Hands the key over to a list handle, which already counts among the holds of the thread.
+         * */
+        private XLockedKeys promote() {
+            if (this.promoted == null) {
+                List<XLock> locks = new ArrayList<>(2);
+                locks.add(this.checkLocked());
+                this.promoted = new XLockedKeys(locks, false, this.shared, this.lockedAt, this.state);
+                this.xlock = null;
+            }
+            return this.promoted;
+        }
+
+        private XLock checkLocked() {
+            XLock xlock = this.xlock;
+            if (xlock == null)
+                throw new RuntimeException("The keys are already released");
+
+            return xlock;
+        }
+
+        @Override
+        public String toString() {
+            if (this.promoted != null) {
+                return this.promoted.toString();
+            }
+            XLock xlock = this.xlock;
+            return xlock == null ? "Locked keys: " : "Locked keys: ".concat(xlock.getKey()).concat("; ");
+        }
+    }
+}
@@ -1,17 +1,11 @@
 package gnoolson.locker;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
 
-public class OptimisticLocalLocker implements Locker {
-
-    private static final String GLOBAL_LOCK_KEY = UUID.randomUUID().toString();
-    private final ReentrantLock innerLock = new ReentrantLock();
-    private final Map<String, XLock> allLockedKeys = new HashMap<>();
-    private final long minimumWaitTimeBeforeNewLockAttempt;
-    private final long maximumWaitTimeBeforeNewLockAttempt;
-    private final long maximumLockAttemptTime;
+/**
+ * {@link OptimisticKeyLocker} over String keys, which also locks long keys.
+ */
+public class OptimisticLocalLocker extends OptimisticKeyLocker<String> implements LongKeyLocker {
 
     /*
      *
@@ -22,216 +16,89 @@ public class OptimisticLocalLocker implements Locker {
     }
 
     public OptimisticLocalLocker(long minimumWaitTimeBeforeNewLockAttempt, long maximumWaitTimeBeforeNewLockAttempt, long maximumLockAttemptTime) {
-        if (minimumWaitTimeBeforeNewLockAttempt < 0)
-            throw new RuntimeException("The minimum time is less than 0 ms");
-
-        if (maximumWaitTimeBeforeNewLockAttempt < 1)
-            throw new RuntimeException("The maximum time is less than 1 ms");
-
-        if (maximumLockAttemptTime < 1)
-            throw new RuntimeException("The maximum lock attempt time is less than 1 ms");
-
-        if (minimumWaitTimeBeforeNewLockAttempt > maximumWaitTimeBeforeNewLockAttempt)
-            throw new RuntimeException("The minimum time is greater than the maximum time");
-
-        this.minimumWaitTimeBeforeNewLockAttempt = minimumWaitTimeBeforeNewLockAttempt;
-        this.maximumWaitTimeBeforeNewLockAttempt = maximumWaitTimeBeforeNewLockAttempt;
-        this.maximumLockAttemptTime = maximumLockAttemptTime;
+        this(minimumWaitTimeBeforeNewLockAttempt, maximumWaitTimeBeforeNewLockAttempt, maximumLockAttemptTime, DEFAULT_STRIPES);
     }
 
-    @Override
-    public LockedKeys lock() {
-        return lock(true, GLOBAL_LOCK_KEY);
+    /**
+     * @param stripes number of partitions of the key table; rounded up to a power of two.
+     *                Keys hashed to different stripes never synchronize with each other.
+     */
+    public OptimisticLocalLocker(long minimumWaitTimeBeforeNewLockAttempt, long maximumWaitTimeBeforeNewLockAttempt, long maximumLockAttemptTime, int stripes) {
+        this(minimumWaitTimeBeforeNewLockAttempt, maximumWaitTimeBeforeNewLockAttempt, maximumLockAttemptTime, Registry.STRIPED, stripes);
     }
 
-    @Override
-    public LockedKeys lockKeys(String... keys) {
-        return lock(false, keys);
+    public OptimisticLocalLocker(long minimumWaitTimeBeforeNewLockAttempt, long maximumWaitTimeBeforeNewLockAttempt, long maximumLockAttemptTime, Registry registry) {
+        this(minimumWaitTimeBeforeNewLockAttempt, maximumWaitTimeBeforeNewLockAttempt, maximumLockAttemptTime, registry, DEFAULT_STRIPES);
     }
 
-    @Override
-    public boolean hasLockedThreads() {
-        this.innerLock.lock();
-        try {
-            return !allLockedKeys.isEmpty();
-        } finally {
-            this.innerLock.unlock();
-        }
+    private OptimisticLocalLocker(long minimumWaitTimeBeforeNewLockAttempt, long maximumWaitTimeBeforeNewLockAttempt, long maximumLockAttemptTime, Registry registry, int stripes) {
+        this(uniformBackoff(minimumWaitTimeBeforeNewLockAttempt, maximumWaitTimeBeforeNewLockAttempt), TimeUnit.MILLISECONDS.toNanos(maximumLockAttemptTime), registry, stripes, null);
     }
 
-    /*
-     *
-     *
-     * */
-    private LockedKeys lock(boolean globalLock, String... keys) {
-        boolean retry = false;
-        List<XLock> lockedKeys = new ArrayList<>(keys.length);
-        long totalSleepTime = 0;
-
-        do {
-            boolean fail = false;
-            if (retry) {
-                lockedKeys.clear();
-
-                checkAttemptTime(totalSleepTime);
-
-                long sleepTime = this.generateSleepTime();
-                totalSleepTime += sleepTime;
-                this.sleep(sleepTime);
-            }
-
-            for (String key : keys) {
-                this.innerLock.lock();
-                try {
-                    if(!globalLock && isFullLockAlreadyActive()){
-                        fail = true;
-                        break;
-                    }
-
-                    if(globalLock && hasNormalLocks()) {
-                        fail = true;
-                        break;
-                    }
-
-                    XLock xlock = this.getXLock(key);
-                    if (xlock.tryLock()) {
-                        lockedKeys.add(xlock);
-                    } else {
-                        unlockLockedKeys(lockedKeys);
-                        fail = true;
-                        break;
-                    }
-                } finally {
-                    this.innerLock.unlock();
-                }
-            }
-
-            retry = fail;
-        } while (retry);
-
-        return new XLockedKeys(lockedKeys);
-    }
-
-    private void checkAttemptTime(long totalSleepTime) {
-        if (totalSleepTime >= this.maximumLockAttemptTime)
-            throw new RuntimeException(String.format("Could not lock. Too much time to try (%dms)", totalSleepTime));
+    /**
+     * @param backoffStrategy how to wait between two attempts, see the factory methods of {@link BackoffStrategy}
+     */
+    public OptimisticLocalLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime) {
+        this(backoffStrategy, maximumLockAttemptTime, TimeUnit.MILLISECONDS);
     }
 
-    private void unlockLockedKeys(List<XLock> lockedKeys) {
-        for (XLock lockedKey : lockedKeys) {
-            lockedKey.unlock();
-        }
+    public OptimisticLocalLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, Registry registry) {
+        this(backoffStrategy, maximumLockAttemptTime, TimeUnit.MILLISECONDS, registry);
     }
 
-    private boolean isFullLockAlreadyActive() {
-        return this.allLockedKeys.containsKey(GLOBAL_LOCK_KEY);
+    /**
+     * @param maximumLockAttemptTime upper bound of the whole acquisition, time spent on failed attempts included;
+     *                               may be shorter than a millisecond
+     */
+    public OptimisticLocalLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, TimeUnit unit) {
+        this(backoffStrategy, unit.toNanos(maximumLockAttemptTime), Registry.STRIPED, DEFAULT_STRIPES, null);
     }
 
-    private boolean hasNormalLocks(){
-        if (!this.allLockedKeys.isEmpty()) {
-            return this.allLockedKeys.size() != 1 || !this.allLockedKeys.containsKey(GLOBAL_LOCK_KEY);
-        }
-        return false;
+    public OptimisticLocalLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, TimeUnit unit, Registry registry) {
+        this(backoffStrategy, unit.toNanos(maximumLockAttemptTime), registry, DEFAULT_STRIPES, null);
     }
 
-    private long generateSleepTime() {
-        return (long) ((Math.random() * (this.maximumWaitTimeBeforeNewLockAttempt - this.minimumWaitTimeBeforeNewLockAttempt)) + this.minimumWaitTimeBeforeNewLockAttempt);
+    /**
+     * @param listener receives the wait time, hold time and retries of every acquisition, for example a
+     *                 {@link LockMetrics}; with null nothing is measured
+     */
+    public OptimisticLocalLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, TimeUnit unit, Registry registry, LockerListener listener) {
+        this(backoffStrategy, unit.toNanos(maximumLockAttemptTime), registry, DEFAULT_STRIPES, listener);
     }
 
-    private void remove(XLock xLock) {
-        this.innerLock.lock();
-        this.allLockedKeys.remove(xLock.getKey());
-        this.innerLock.unlock();
+    private OptimisticLocalLocker(BackoffStrategy backoffStrategy, long maximumLockAttemptTime, Registry registry, int stripes, LockerListener listener) {
+        super(backoffStrategy, maximumLockAttemptTime, registry, stripes, HashingStrategy.natural(), listener);
     }
 
-    private void sleep(long sleepTime) {
-        try {
-            Thread.sleep(sleepTime);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Long keys live in a table of their own whatever the {@link Registry}, so neither the lookup nor the
+     * locking boxes the key or turns it into a String. A single key takes the direct path of
+     * {@link #lockKey(Object)}, without an array.
+     */
+    @Override
+    public LockedKeys lockKey(long key) {
+        return this.lockLong(key);
     }
 
-    private XLock getXLock(String key) {
-        return this.allLockedKeys.compute(key, (_key, value) -> {
-            if (value == null) {
-                value = new XLock(_key);
-            }
-            value.busy();
-            return value;
-        });
+    @Override
+    public LockedKeys lockLongKeys(long... keys) {
+        return this.lockLongs(keys);
     }
 
     /*
      *
      *
      * */
-    private class XLock {
-        private final ReentrantLock rl = new ReentrantLock();
-        private final String key;
-        private final Set<Long> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
-        private int counter;
-
-        public XLock(String key) {
-            this.key = key;
-        }
-
-        public boolean tryLock() {
-            boolean result = this.rl.tryLock();
-            if (result) {
-                this.counter++;
-            }
-            return result;
-        }
-
-        public void busy() {
-            this.threads.add(Thread.currentThread().getId());
-        }
-
-        public void unlock() {
-            this.counter--;
-            if (this.counter == 0) {
-                this.threads.remove(Thread.currentThread().getId());
-                if (!this.rl.hasQueuedThreads() && this.threads.isEmpty()) {
-                    OptimisticLocalLocker.this.remove(this);
-                }
-            }
-            this.rl.unlock();
-        }
-
-        public String getKey() {
-            return this.key;
-        }
-    }
+    private static BackoffStrategy uniformBackoff(long minimumWaitTimeBeforeNewLockAttempt, long maximumWaitTimeBeforeNewLockAttempt) {
+        if (minimumWaitTimeBeforeNewLockAttempt < 0)
+            throw new RuntimeException("The minimum time is less than 0 ms");
 
-    public class XLockedKeys implements LockedKeys {
-        private final List<XLock> locks;
-
-        private XLockedKeys(List<XLock> locks) {
-            this.locks = locks;
-        }
-
-        @Override
-        public void close() {
-            this.release();
-        }
-
-        @Override
-        public void release() {
-            for (XLock xlock : this.locks) {
-                xlock.unlock();
-            }
-        }
-
-        @Override
-        public String toString() {
-            String result = "Locked keys: ";
-            for (XLock xLock : this.locks) {
-                result = result.concat(xLock.key).concat("; ");
-            }
-            return result;
-        }
-    }
+        if (maximumWaitTimeBeforeNewLockAttempt < 1)
+            throw new RuntimeException("The maximum time is less than 1 ms");
 
-}
+        if (minimumWaitTimeBeforeNewLockAttempt > maximumWaitTimeBeforeNewLockAttempt)
+            throw new RuntimeException("The minimum time is greater than the maximum time");
 
+        return BackoffStrategy.uniform(minimumWaitTimeBeforeNewLockAttempt, maximumWaitTimeBeforeNewLockAttempt, TimeUnit.MILLISECONDS);
+    }
+}
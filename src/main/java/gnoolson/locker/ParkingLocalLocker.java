@@ -0,0 +1,313 @@
+package gnoolson.locker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+/**
+ * Implementation of {@link Locker} meant for very large numbers of (virtual) threads. Waiting threads are
+ * queued per key and parked with {@link java.util.concurrent.locks.LockSupport}, which lets a virtual thread
+ * unmount from its carrier; they are unparked one by one as keys are released. No monitor is ever held while
+ * waiting and no thread registry is kept: an exclusive key only remembers its current owner, for reentrancy.
+ * <p>
+ * Keys are sorted, deduplicated and taken in that order, waiting for each one while holding the previous ones.
+ * Exclusive holds are reentrant; a shared hold can not be taken by the exclusive owner of the same key.
+ * A global lock waits until no keyed lock is held, and the thread holding it may also lock keys.
+ */
+public class ParkingLocalLocker implements Locker {
+
+    private final PinnedMap<KLock> keys = new PinnedMap<>(KLock::new);
+    // shared by keyed locks, exclusive for the global lock
+    private final KLock gate = new KLock(null);
+    private final KeyVersions versions = new KeyVersions(Runtime.getRuntime().availableProcessors() * 64);
+    // nanoseconds
+    private final long maximumLockAttemptTime;
+
+    /*
+     *
+     *
+     * */
+    public ParkingLocalLocker() {
+        this(2000);
+    }
+
+    public ParkingLocalLocker(long maximumLockAttemptTime) {
+        this(maximumLockAttemptTime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maximumLockAttemptTime may be shorter than a millisecond
+     */
+    public ParkingLocalLocker(long maximumLockAttemptTime, TimeUnit unit) {
+        if (maximumLockAttemptTime < 1)
+            throw new RuntimeException("The maximum lock attempt time is less than 1 ns");
+
+        this.maximumLockAttemptTime = unit.toNanos(maximumLockAttemptTime);
+    }
+
+    @Override
+    public LockedKeys lock() {
+        if (!this.acquire(this.gate, false, Locks.deadline(this.maximumLockAttemptTime))) {
+            throw this.timeoutException();
+        }
+        this.versions.globalLocked();
+        return new KLockedKeys(Collections.emptyList(), false, true, false);
+    }
+
+    @Override
+    public LockedKeys lockKeys(String... keys) {
+        LockedKeys lockedKeys = this.lock(false, Locks.deadline(this.maximumLockAttemptTime), keys);
+        if (lockedKeys == null) {
+            throw this.timeoutException();
+        }
+        return lockedKeys;
+    }
+
+    @Override
+    public LockedKeys lockKeysShared(String... keys) {
+        LockedKeys lockedKeys = this.lock(true, Locks.deadline(this.maximumLockAttemptTime), keys);
+        if (lockedKeys == null) {
+            throw this.timeoutException();
+        }
+        return lockedKeys;
+    }
+
+    @Override
+    public LockedKeys tryLockKeys(String... keys) {
+        // a deadline that has already passed allows exactly one attempt
+        return this.lock(false, System.nanoTime(), keys);
+    }
+
+    @Override
+    public LockedKeys tryLockKeys(long timeout, TimeUnit unit, String... keys) {
+        return this.lock(false, Locks.deadline(unit.toNanos(timeout)), keys);
+    }
+
+    @Override
+    public ReadStamp tryOptimisticRead(String... keys) {
+        return this.versions.stamp(keys);
+    }
+
+    @Override
+    public boolean hasLockedThreads() {
+        return this.gate.isLocked() || !this.keys.isEmpty();
+    }
+
+    /*
+     * Returns null once the deadline has passed.
+     * */
+    private LockedKeys lock(boolean shared, long deadline, String... keys) {
+        String[] ordered = Locks.canonicalOrder(keys);
+        // the owner of the global lock does not wait for itself
+        boolean gated = !this.gate.isHeldByCurrentThread();
+        if (gated && !this.acquire(this.gate, true, deadline)) {
+            return null;
+        }
+
+        List<KLock> lockedKeys = new ArrayList<>(ordered.length);
+        boolean locked = false;
+        try {
+            for (String key : ordered) {
+                KLock klock = this.keys.pin(key);
+                boolean acquired;
+                try {
+                    acquired = this.acquire(klock, shared, deadline);
+                } catch (RuntimeException e) {
+                    // not among the locked keys yet
+                    this.keys.unpin(klock);
+                    throw e;
+                }
+                if (!acquired) {
+                    this.keys.unpin(klock);
+                    return null;
+                }
+                lockedKeys.add(klock);
+                if (!shared) {
+                    this.versions.writeLocked(key);
+                }
+            }
+            locked = true;
+            return new KLockedKeys(lockedKeys, shared, false, gated);
+        } finally {
+            if (!locked) {
+                this.unlockLockedKeys(lockedKeys, shared, gated);
+            }
+        }
+    }
+
+    private boolean acquire(KLock klock, boolean shared, long deadline) {
+        if (shared ? klock.tryAcquireShared(1) >= 0 : klock.tryAcquire(1)) {
+            return true;
+        }
+
+        long nanos = deadline - System.nanoTime();
+        if (nanos <= 0) {
+            return false;
+        }
+        try {
+            return shared ? klock.tryAcquireSharedNanos(1, nanos) : klock.tryAcquireNanos(1, nanos);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void unlockLockedKeys(List<KLock> lockedKeys, boolean shared, boolean gated) {
+        for (KLock klock : lockedKeys) {
+            if (shared) {
+                klock.releaseShared(1);
+            } else {
+                // throws before anything changes when the key is not held by this thread
+                klock.release(1);
+                this.versions.writeUnlocked(klock.key);
+            }
+            this.keys.unpin(klock);
+        }
+        if (gated) {
+            this.gate.releaseShared(1);
+        }
+    }
+
+    private void unlockGlobal() {
+        this.gate.release(1);
+        this.versions.globalUnlocked();
+    }
+
+    private RuntimeException timeoutException() {
+        return Locks.timeoutException(this.maximumLockAttemptTime);
+    }
+
+    /*
+     * State is the number of shared holds when positive and minus the number of reentrant exclusive holds
+     * when negative. Shared requests do not give way to queued exclusive ones, so a thread may always take
+     * a shared hold again while already holding one.
+     * */
+    private static class KLock extends AbstractQueuedSynchronizer implements PinnedMap.Pinned {
+        private static final long serialVersionUID = 1L;
+        private final String key;
+        private final AtomicInteger pins = new AtomicInteger(1);
+
+        private KLock(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String key() {
+            return this.key;
+        }
+
+        @Override
+        public AtomicInteger pins() {
+            return this.pins;
+        }
+
+        private boolean isLocked() {
+            return this.getState() != 0;
+        }
+
+        private boolean isHeldByCurrentThread() {
+            return this.getState() < 0 && this.getExclusiveOwnerThread() == Thread.currentThread();
+        }
+
+        @Override
+        protected boolean tryAcquire(int ignored) {
+            int state = this.getState();
+            if (state == 0) {
+                if (this.compareAndSetState(0, -1)) {
+                    this.setExclusiveOwnerThread(Thread.currentThread());
+                    return true;
+                }
+                return false;
+            }
+            if (state < 0 && this.getExclusiveOwnerThread() == Thread.currentThread()) {
+                this.setState(state - 1);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected boolean tryRelease(int ignored) {
+            if (this.getState() >= 0 || this.getExclusiveOwnerThread() != Thread.currentThread()) {
+                throw new IllegalMonitorStateException("Not held by the current thread");
+            }
+            int state = this.getState() + 1;
+            if (state == 0) {
+                this.setExclusiveOwnerThread(null);
+            }
+            this.setState(state);
+            return state == 0;
+        }
+
+        @Override
+        protected int tryAcquireShared(int ignored) {
+            while (true) {
+                int state = this.getState();
+                if (state < 0) {
+                    return -1;
+                }
+                if (this.compareAndSetState(state, state + 1)) {
+                    return 1;
+                }
+            }
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int ignored) {
+            while (true) {
+                int state = this.getState();
+                if (state <= 0) {
+                    throw new IllegalMonitorStateException("Not held shared");
+                }
+                if (this.compareAndSetState(state, state - 1)) {
+                    return state == 1;
+                }
+            }
+        }
+    }
+
+    public class KLockedKeys implements LockedKeys {
+        private final List<KLock> locks;
+        private final boolean shared;
+        private final boolean global;
+        private final boolean gated;
+        private boolean released;
+
+        private KLockedKeys(List<KLock> locks, boolean shared, boolean global, boolean gated) {
+            this.locks = locks;
+            this.shared = shared;
+            this.global = global;
+            this.gated = gated;
+        }
+
+        @Override
+        public void close() {
+            this.release();
+        }
+
+        @Override
+        public void release() {
+            if (this.released) {
+                return;
+            }
+            if (this.global) {
+                ParkingLocalLocker.this.unlockGlobal();
+            } else {
+                ParkingLocalLocker.this.unlockLockedKeys(this.locks, this.shared, this.gated);
+            }
+            this.released = true;
+        }
+
+        @Override
+        public String toString() {
+            String result = "Locked keys: ";
+            for (KLock kLock : this.locks) {
+                result = result.concat(kLock.key).concat("; ");
+            }
+            return result;
+        }
+    }
+
+}
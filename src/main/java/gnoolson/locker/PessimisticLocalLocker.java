@@ -0,0 +1,789 @@
+package gnoolson.locker;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking implementation of {@link Locker}. A thread that finds a key taken releases whatever it has already
+ * locked, waits in the queue of that key and is woken as soon as the holder releases it, so no time is lost
+ * sleeping between attempts.
+ */
+public class PessimisticLocalLocker implements AsyncLocker {
+
+    private static final int DEFAULT_STRIPES = Runtime.getRuntime().availableProcessors() * 4;
+    private final Stripe[] stripes;
+    private final boolean fair;
+    private final AcquisitionMode acquisitionMode;
+    private final long maximumLockAttemptTime;
+    private final KeyVersions versions = new KeyVersions(DEFAULT_STRIPES * 16);
+    private final ReentrantLock globalLock = new ReentrantLock();
+    private final Condition globalAvailable = globalLock.newCondition();
+    private Thread globalOwner;
+    private int globalHolds;
+    // owner of the global lock from the moment it starts waiting for keyed locks to drain
+    private volatile Thread globalBlocker;
+    // set once every stripe was seen drained at once; from then on holders of keys wait like everyone else
+    private volatile boolean globalGranted;
+    private final ThreadLocal<ThreadState> threadStates = ThreadLocal.withInitial(ThreadState::new);
+
+    /**
+     * How a call with several keys deals with a key that is taken.
+     */
+    public enum AcquisitionMode {
+        /**
+         * Release the keys taken so far, wait for the busy key and start over.
+         */
+        ALL_OR_NOTHING,
+        /**
+         * Sort and deduplicate the keys, then wait for each one in that order while holding the previous ones.
+         * Since every call takes keys in the same global order, waiting can not form a cycle and nothing taken
+         * is given back, except when a global lock is requested meanwhile.
+         */
+        ORDERED
+    }
+
+    /*
+     *
+     *
+     * */
+    public PessimisticLocalLocker() {
+        this(2000);
+    }
+
+    public PessimisticLocalLocker(long maximumLockAttemptTime) {
+        this(maximumLockAttemptTime, false);
+    }
+
+    /**
+     * @param fair when true a released key goes to the threads waiting for it in arrival order;
+     *             otherwise a newly arriving thread may take a free key ahead of the queue.
+     */
+    public PessimisticLocalLocker(long maximumLockAttemptTime, boolean fair) {
+        this(maximumLockAttemptTime, fair, DEFAULT_STRIPES);
+    }
+
+    public PessimisticLocalLocker(long maximumLockAttemptTime, boolean fair, int stripes) {
+        this(maximumLockAttemptTime, fair, AcquisitionMode.ALL_OR_NOTHING, stripes);
+    }
+
+    public PessimisticLocalLocker(long maximumLockAttemptTime, boolean fair, AcquisitionMode acquisitionMode) {
+        this(maximumLockAttemptTime, fair, acquisitionMode, DEFAULT_STRIPES);
+    }
+
+    public PessimisticLocalLocker(long maximumLockAttemptTime, boolean fair, AcquisitionMode acquisitionMode, int stripes) {
+        if (maximumLockAttemptTime < 1)
+            throw new RuntimeException("The maximum lock attempt time is less than 1 ms");
+
+        if (acquisitionMode == null)
+            throw new RuntimeException("The acquisition mode is not specified");
+
+        if (stripes < 1)
+            throw new RuntimeException("The number of stripes is less than 1");
+
+        this.maximumLockAttemptTime = maximumLockAttemptTime;
+        this.fair = fair;
+        this.acquisitionMode = acquisitionMode;
+        this.stripes = new Stripe[Locks.tableSizeFor(stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public LockedKeys lock() {
+        Thread owner = Thread.currentThread();
+        long deadline = Locks.deadline(TimeUnit.MILLISECONDS.toNanos(this.maximumLockAttemptTime));
+
+        this.globalLock.lock();
+        try {
+            if (this.globalOwner == owner) {
+                this.globalHolds++;
+                return new PLockedKeys(Collections.emptyList(), false, true, null);
+            }
+            while (this.globalOwner != null) {
+                if (!this.await(this.globalAvailable, deadline)) {
+                    throw this.timeoutException();
+                }
+            }
+            this.globalOwner = owner;
+            this.globalHolds = 1;
+        } finally {
+            this.globalLock.unlock();
+        }
+
+        // From here on new keyed attempts queue up behind us; wait for the ones in progress to finish.
+        this.globalBlocker = owner;
+        this.versions.globalLocked();
+        boolean drained = false;
+        try {
+            do {
+                for (Stripe stripe : this.stripes) {
+                    stripe.lock.lock();
+                    try {
+                        while (stripe.held != 0) {
+                            if (!this.await(stripe.drained, deadline)) {
+                                throw this.timeoutException();
+                            }
+                        }
+                    } finally {
+                        stripe.lock.unlock();
+                    }
+                }
+            } while (!this.grantGlobal());
+            drained = true;
+        } finally {
+            if (!drained) {
+                this.unlockGlobal();
+            }
+        }
+        return new PLockedKeys(Collections.emptyList(), false, true, null);
+    }
+
+    @Override
+    public LockedKeys lockKeys(String... keys) {
+        LockedKeys lockedKeys = this.lock(false, Locks.deadline(TimeUnit.MILLISECONDS.toNanos(this.maximumLockAttemptTime)), keys);
+        if (lockedKeys == null) {
+            throw this.timeoutException();
+        }
+        return lockedKeys;
+    }
+
+    @Override
+    public LockedKeys lockKeysShared(String... keys) {
+        LockedKeys lockedKeys = this.lock(true, Locks.deadline(TimeUnit.MILLISECONDS.toNanos(this.maximumLockAttemptTime)), keys);
+        if (lockedKeys == null) {
+            throw this.timeoutException();
+        }
+        return lockedKeys;
+    }
+
+    @Override
+    public LockedKeys tryLockKeys(String... keys) {
+        Waiter waiter = new Waiter(Thread.currentThread(), this.threadStates.get(), false);
+        List<PLock> lockedKeys = new ArrayList<>(keys.length);
+        return this.tryLockAll(keys, waiter, lockedKeys) < 0 ? new PLockedKeys(lockedKeys, false, false, waiter.state) : null;
+    }
+
+    @Override
+    public LockedKeys tryLockKeys(long timeout, TimeUnit unit, String... keys) {
+        return this.lock(false, Locks.deadline(unit.toNanos(timeout)), keys);
+    }
+
+    /**
+     * The request never blocks the calling thread: while a key is taken it waits in the queue of that key as a
+     * continuation and is resumed on {@link ForkJoinPool#commonPool()} when the key is released. The returned
+     * handle is not tied to any thread and may be released from anywhere; the keys are not reentrant with
+     * locks held by the calling thread. Keys are always taken all or nothing, whatever the acquisition mode.
+     * The future fails with the usual exception after the maximum lock attempt time.
+     */
+    @Override
+    public CompletableFuture<LockedKeys> lockKeysAsync(String... keys) {
+        Waiter waiter = new Waiter(new Object(), null, false);
+        waiter.keys = keys.clone();
+        waiter.future = new CompletableFuture<>();
+        waiter.timeout = Timeouts.SCHEDULER.schedule(
+                () -> waiter.future.completeExceptionally(this.timeoutException()),
+                this.maximumLockAttemptTime, TimeUnit.MILLISECONDS);
+        this.attemptAsync(waiter);
+        return waiter.future;
+    }
+
+    /*
+     * Returns null once the deadline has passed.
+     * */
+    private LockedKeys lock(boolean shared, long deadline, String... keys) {
+        if (this.acquisitionMode == AcquisitionMode.ORDERED) {
+            return this.lockOrdered(shared, deadline, Locks.canonicalOrder(keys));
+        }
+
+        Waiter waiter = new Waiter(Thread.currentThread(), this.threadStates.get(), shared);
+        List<PLock> lockedKeys = new ArrayList<>(keys.length);
+
+        try {
+            while (true) {
+                int conflict = this.tryLockAll(keys, waiter, lockedKeys);
+                if (conflict < 0) {
+                    return new PLockedKeys(lockedKeys, shared, false, waiter.state);
+                }
+                if (this.awaitKey(keys[conflict], waiter, deadline, false) == Wait.TIMED_OUT) {
+                    this.leaveQueue(waiter);
+                    return null;
+                }
+            }
+        } catch (RuntimeException e) {
+            this.leaveQueue(waiter);
+            throw e;
+        }
+    }
+
+    @Override
+    public ReadStamp tryOptimisticRead(String... keys) {
+        return this.versions.stamp(keys);
+    }
+
+    @Override
+    public boolean hasLockedThreads() {
+        this.globalLock.lock();
+        try {
+            if (this.globalOwner != null) {
+                return true;
+            }
+        } finally {
+            this.globalLock.unlock();
+        }
+
+        for (Stripe stripe : this.stripes) {
+            stripe.lock.lock();
+            try {
+                if (!stripe.keys.isEmpty()) {
+                    return true;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Keys are expected in canonical order. Waits for each of them in turn while holding the previous ones.
+     * */
+    private LockedKeys lockOrdered(boolean shared, long deadline, String[] keys) {
+        Waiter waiter = new Waiter(Thread.currentThread(), this.threadStates.get(), shared);
+        List<PLock> lockedKeys = new ArrayList<>(keys.length);
+
+        try {
+            int i = 0;
+            while (i < keys.length) {
+                PLock plock = this.tryLockKey(keys[i], waiter);
+                if (plock != null) {
+                    lockedKeys.add(plock);
+                    i++;
+                } else {
+                    Wait wait = this.awaitKey(keys[i], waiter, deadline, !lockedKeys.isEmpty());
+                    if (wait == Wait.TIMED_OUT) {
+                        this.leaveQueue(waiter);
+                        this.unlockLockedKeys(lockedKeys, shared);
+                        return null;
+                    }
+                    if (wait == Wait.GLOBAL_PENDING) {
+                        // a global lock is waiting for our keys; let it pass and start over
+                        this.unlockLockedKeys(lockedKeys, shared);
+                        lockedKeys.clear();
+                        i = 0;
+                    }
+                }
+            }
+            return new PLockedKeys(lockedKeys, shared, false, waiter.state);
+        } catch (RuntimeException e) {
+            this.leaveQueue(waiter);
+            this.unlockLockedKeys(lockedKeys, shared);
+            throw e;
+        }
+    }
+
+    /*
+     * Takes every key or none of them. Returns -1 on success, otherwise the index of the key that could not be taken.
+     * */
+    private int tryLockAll(String[] keys, Waiter waiter, List<PLock> lockedKeys) {
+        lockedKeys.clear();
+        for (int i = 0; i < keys.length; i++) {
+            PLock plock = this.tryLockKey(keys[i], waiter);
+            if (plock == null) {
+                this.unlockLockedKeys(lockedKeys, waiter.shared);
+                lockedKeys.clear();
+                return i;
+            }
+            lockedKeys.add(plock);
+        }
+        return -1;
+    }
+
+    private PLock tryLockKey(String key, Waiter waiter) {
+        Stripe stripe = this.stripe(key);
+        stripe.lock.lock();
+        try {
+            if (this.isBlockedByGlobal(waiter)) {
+                return null;
+            }
+            PLock plock = stripe.getPLock(key);
+            if (!plock.tryLock(waiter)) {
+                stripe.removeIfIdle(plock);
+                return null;
+            }
+            return plock;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /*
+     * Waits until the key (and the global lock) may be free for the waiter. Returns immediately if it already is.
+     * A caller that still holds keys taken by this call must not wait for the global lock, which waits for those
+     * keys in turn: in that case GLOBAL_PENDING is returned instead.
+     * */
+    private Wait awaitKey(String key, Waiter waiter, long deadline, boolean holdingKeys) {
+        Stripe stripe = this.stripe(key);
+        if (waiter.queuedOn != null && !waiter.queuedOn.key.equals(key)) {
+            this.leaveQueue(waiter);
+        }
+
+        stripe.lock.lock();
+        try {
+            if (this.isBlockedByGlobal(waiter)) {
+                if (holdingKeys) {
+                    return Wait.GLOBAL_PENDING;
+                }
+                do {
+                    if (!this.await(stripe.globalReleased, deadline)) {
+                        return Wait.TIMED_OUT;
+                    }
+                } while (this.isBlockedByGlobal(waiter));
+                return Wait.READY;
+            }
+
+            PLock plock = stripe.keys.get(key);
+            if (plock == null || plock.isAvailableFor(waiter)) {
+                return Wait.READY;
+            }
+
+            if (waiter.queuedOn != plock) {
+                plock.waiters.add(waiter);
+                waiter.queuedOn = plock;
+                waiter.condition = stripe.lock.newCondition();
+            }
+            waiter.signalled = false;
+            while (!waiter.signalled) {
+                if (!this.await(waiter.condition, deadline)) {
+                    return Wait.TIMED_OUT;
+                }
+            }
+            return Wait.READY;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /*
+     * Runs until the keys are taken or the waiter has been parked in a queue; whoever wakes it up resumes it.
+     * */
+    private void attemptAsync(Waiter waiter) {
+        List<PLock> lockedKeys = new ArrayList<>(waiter.keys.length);
+        try {
+            while (!waiter.future.isDone()) {
+                int conflict = this.tryLockAll(waiter.keys, waiter, lockedKeys);
+                if (conflict < 0) {
+                    waiter.timeout.cancel(false);
+                    PLockedKeys handle = new PLockedKeys(lockedKeys, false, false, null);
+                    if (!waiter.future.complete(handle)) {
+                        handle.release();
+                    }
+                    return;
+                }
+                if (!this.parkAsync(waiter.keys[conflict], waiter)) {
+                    return;
+                }
+            }
+            // timed out or cancelled while parked
+            this.leaveQueue(waiter);
+        } catch (RuntimeException e) {
+            this.leaveQueue(waiter);
+            waiter.future.completeExceptionally(e);
+        }
+    }
+
+    /*
+     * Asynchronous counterpart of awaitKey: returns true if the key may be free and should be tried again,
+     * false if the waiter has been parked.
+     * */
+    private boolean parkAsync(String key, Waiter waiter) {
+        Stripe stripe = this.stripe(key);
+        if (waiter.queuedOn != null && !waiter.queuedOn.key.equals(key)) {
+            this.leaveQueue(waiter);
+        }
+
+        stripe.lock.lock();
+        try {
+            if (this.isBlockedByGlobal(waiter)) {
+                PLock queuedOn = waiter.queuedOn;
+                if (queuedOn != null) {
+                    queuedOn.leave(waiter);
+                    stripe.removeIfIdle(queuedOn);
+                }
+                stripe.globalWaiters.add(waiter);
+                return false;
+            }
+
+            PLock plock = stripe.keys.get(key);
+            if (plock == null || plock.isAvailableFor(waiter)) {
+                return true;
+            }
+
+            if (waiter.queuedOn != plock) {
+                plock.waiters.add(waiter);
+                waiter.queuedOn = plock;
+            }
+            waiter.signalled = false;
+            return false;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private void resumeAsync(Waiter waiter) {
+        ForkJoinPool.commonPool().execute(() -> this.attemptAsync(waiter));
+    }
+
+    private void leaveQueue(Waiter waiter) {
+        PLock plock = waiter.queuedOn;
+        if (plock == null) {
+            return;
+        }
+
+        Stripe stripe = this.stripe(plock.key);
+        stripe.lock.lock();
+        try {
+            plock.leave(waiter);
+            stripe.removeIfIdle(plock);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private void unlockLockedKeys(List<PLock> lockedKeys, boolean shared) {
+        for (PLock plock : lockedKeys) {
+            Stripe stripe = this.stripe(plock.key);
+            stripe.lock.lock();
+            try {
+                if (plock.unlock(shared)) {
+                    stripe.held--;
+                    if (stripe.held == 0 && this.globalBlocker != null) {
+                        stripe.drained.signalAll();
+                    }
+                    stripe.removeIfIdle(plock);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * A thread that already holds keys may take more on a stripe drained earlier, so all stripes are checked again
+     * together before the global lock is granted.
+     * */
+    private boolean grantGlobal() {
+        int locked = 0;
+        try {
+            for (Stripe stripe : this.stripes) {
+                stripe.lock.lock();
+                locked++;
+                if (stripe.held != 0) {
+                    return false;
+                }
+            }
+            this.globalGranted = true;
+            return true;
+        } finally {
+            while (locked > 0) {
+                this.stripes[--locked].lock.unlock();
+            }
+        }
+    }
+
+    private void unlockGlobal() {
+        this.globalLock.lock();
+        try {
+            if (--this.globalHolds != 0) {
+                return;
+            }
+            this.globalGranted = false;
+            this.globalOwner = null;
+            this.globalBlocker = null;
+            this.versions.globalUnlocked();
+            this.globalAvailable.signal();
+        } finally {
+            this.globalLock.unlock();
+        }
+
+        for (Stripe stripe : this.stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.globalReleased.signalAll();
+                for (Waiter waiter : stripe.globalWaiters) {
+                    this.resumeAsync(waiter);
+                }
+                stripe.globalWaiters.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * A pending global lock is waiting for the keys a thread already holds, so that thread must not wait for it
+     * until the global lock is granted.
+     * */
+    private boolean isBlockedByGlobal(Waiter waiter) {
+        Thread blocker = this.globalBlocker;
+        return blocker != null && blocker != waiter.owner
+                && (this.globalGranted || waiter.state == null || waiter.state.holds == 0);
+    }
+
+    private RuntimeException timeoutException() {
+        return Locks.timeoutException(TimeUnit.MILLISECONDS.toNanos(this.maximumLockAttemptTime));
+    }
+
+    /*
+     * Returns false without waiting once the deadline has passed.
+     * */
+    private boolean await(Condition condition, long deadline) {
+        long nanos = deadline - System.nanoTime();
+        if (nanos <= 0) {
+            return false;
+        }
+
+        try {
+            condition.awaitNanos(nanos);
+            return true;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Stripe stripe(String key) {
+        int h = key.hashCode();
+        return this.stripes[(h ^ (h >>> 16)) & (this.stripes.length - 1)];
+    }
+
+    /*
+     *
+     *
+     * */
+    private class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition drained = lock.newCondition();
+        private final Condition globalReleased = lock.newCondition();
+        private final List<Waiter> globalWaiters = new ArrayList<>();
+        private final Map<String, PLock> keys = new HashMap<>();
+        // number of keys of this stripe that currently have at least one holder
+        private int held;
+
+        private PLock getPLock(String key) {
+            PLock plock = this.keys.get(key);
+            if (plock == null) {
+                plock = new PLock(key);
+                this.keys.put(key, plock);
+            }
+            return plock;
+        }
+
+        private void removeIfIdle(PLock plock) {
+            if (plock.isFree() && plock.waiters.isEmpty()) {
+                this.keys.remove(plock.key, plock);
+            }
+        }
+    }
+
+    /*
+     * State of one key; every field is guarded by the lock of the stripe the key belongs to.
+     * */
+    private class PLock {
+        private final String key;
+        private final Deque<Waiter> waiters = new ArrayDeque<>();
+        // exclusive holder (a thread, or the token of an asynchronous request) and its reentrant hold count
+        private Object owner;
+        private int holds;
+        // shared holds of all threads, including shared holds taken by the exclusive owner itself
+        private int readers;
+
+        private PLock(String key) {
+            this.key = key;
+        }
+
+        private boolean isFree() {
+            return this.owner == null && this.readers == 0;
+        }
+
+        private boolean isAvailableFor(Waiter waiter) {
+            if (this.owner == waiter.owner) {
+                return true;
+            }
+            if (this.owner != null || (!waiter.shared && this.readers != 0)) {
+                return false;
+            }
+            return !PessimisticLocalLocker.this.fair || this.waiters.isEmpty() || this.waiters.peekFirst() == waiter;
+        }
+
+        private boolean tryLock(Waiter waiter) {
+            if (!this.isAvailableFor(waiter)) {
+                return false;
+            }
+
+            if (this.isFree()) {
+                PessimisticLocalLocker.this.stripe(this.key).held++;
+            }
+            if (waiter.shared) {
+                this.readers++;
+            } else {
+                if (this.owner == null) {
+                    PessimisticLocalLocker.this.versions.writeLocked(this.key);
+                }
+                this.owner = waiter.owner;
+                this.holds++;
+            }
+            if (waiter.queuedOn == this) {
+                this.waiters.remove(waiter);
+                waiter.queuedOn = null;
+                if (waiter.shared && this.owner == null) {
+                    // let the next shared waiter in line join us
+                    this.signalFirst();
+                }
+            }
+            return true;
+        }
+
+        /*
+         * Returns true when the last hold of any kind has been released.
+         * */
+        private boolean unlock(boolean shared) {
+            if (shared) {
+                this.readers--;
+            } else if (--this.holds == 0) {
+                this.owner = null;
+                PessimisticLocalLocker.this.versions.writeUnlocked(this.key);
+            } else {
+                return false;
+            }
+
+            if (this.isFree() || (!shared && this.owner == null)) {
+                this.signalFirst();
+            }
+            return this.isFree();
+        }
+
+        private void leave(Waiter waiter) {
+            boolean first = this.waiters.peekFirst() == waiter;
+            this.waiters.remove(waiter);
+            waiter.queuedOn = null;
+            if (first && this.owner == null) {
+                this.signalFirst();
+            }
+        }
+
+        private void signalFirst() {
+            Waiter first = this.waiters.peekFirst();
+            if (first == null) {
+                return;
+            }
+            if (first.future == null) {
+                first.signalled = true;
+                first.condition.signal();
+            } else if (!first.signalled) {
+                first.signalled = true;
+                PessimisticLocalLocker.this.resumeAsync(first);
+            }
+        }
+    }
+
+    private enum Wait {
+        READY, GLOBAL_PENDING, TIMED_OUT
+    }
+
+    /*
+     * One per lockKeys call; it sits in the queue of at most one key at a time.
+     * A waiter of an asynchronous request has no condition: being signalled resumes it on the executor.
+     * */
+    private static class Waiter {
+        private final Object owner;
+        // of the owner thread; none for an asynchronous request
+        private final ThreadState state;
+        private final boolean shared;
+        private PLock queuedOn;
+        private Condition condition;
+        private boolean signalled;
+        private String[] keys;
+        private CompletableFuture<LockedKeys> future;
+        private Future<?> timeout;
+
+        private Waiter(Object owner, ThreadState state, boolean shared) {
+            this.owner = owner;
+            this.state = state;
+            this.shared = shared;
+        }
+    }
+
+    /*
+     * Shared by every locker; only fails asynchronous requests that waited too long.
+     * */
+    private static class Timeouts {
+        private static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "locker-async-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            SCHEDULER.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /*
+     * What the locker knows of one thread: how many keyed handles it holds. Only that thread changes it.
+     * */
+    private static class ThreadState {
+        private int holds;
+    }
+
+    public class PLockedKeys implements LockedKeys {
+        private final List<PLock> locks;
+        private final boolean shared;
+        private final boolean global;
+        // of the locking thread, for keyed handles
+        private final ThreadState state;
+        private boolean released;
+
+        private PLockedKeys(List<PLock> locks, boolean shared, boolean global, ThreadState state) {
+            this.locks = locks;
+            this.shared = shared;
+            this.global = global;
+            this.state = state;
+            if (state != null) {
+                state.holds++;
+            }
+        }
+
+        @Override
+        public void close() {
+            this.release();
+        }
+
+        @Override
+        public void release() {
+            if (this.released) {
+                return;
+            }
+            this.released = true;
+            if (this.global) {
+                PessimisticLocalLocker.this.unlockGlobal();
+            } else {
+                PessimisticLocalLocker.this.unlockLockedKeys(this.locks, this.shared);
+                if (this.state != null) {
+                    this.state.holds--;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            String result = "Locked keys: ";
+            for (PLock pLock : this.locks) {
+                result = result.concat(pLock.key).concat("; ");
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package gnoolson.locker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/*
+ * Locks by key, created on demand. A lock is pinned once per holder and once per attempt in flight, and leaves
+ * the map with its last pin. A retired lock is never pinned again; whoever meets it helps to remove it and
+ * registers a fresh one.
+ * */
+class PinnedMap<V extends PinnedMap.Pinned> {
+
+    private final ConcurrentHashMap<String, V> values = new ConcurrentHashMap<>();
+    private final Function<String, V> factory;
+
+    /**
+     * @param factory creates a lock pinned once
+     */
+    PinnedMap(Function<String, V> factory) {
+        this.factory = factory;
+    }
+
+    V pin(String key) {
+        while (true) {
+            V value = this.values.get(key);
+            if (value == null) {
+                value = this.factory.apply(key);
+                if (this.values.putIfAbsent(key, value) == null) {
+                    return value;
+                }
+            } else if (tryPin(value.pins())) {
+                return value;
+            } else {
+                this.values.remove(key, value);
+            }
+        }
+    }
+
+    void unpin(V value) {
+        if (value.pins().decrementAndGet() == 0 && value.pins().compareAndSet(0, -1)) {
+            this.values.remove(value.key(), value);
+        }
+    }
+
+    boolean isEmpty() {
+        return this.values.isEmpty();
+    }
+
+    /*
+     * Fails once the pins are retired, that is -1.
+     * */
+    static boolean tryPin(AtomicInteger pins) {
+        int current;
+        do {
+            current = pins.get();
+            if (current < 0) {
+                return false;
+            }
+        } while (!pins.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    interface Pinned {
+
+        String key();
+
+        // holders plus attempts in flight; -1 once retired from the map
+        AtomicInteger pins();
+    }
+}
@@ -0,0 +1,59 @@
+package gnoolson.locker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Tells whether any keyed acquisition is in flight or held, which is all the global lock has to wait for.
+ * Every thread counts in a cell picked by its id, each cell on a cache line of its own, so keyed lockers only
+ * write to their own line; the rare global lock pays for reading all of them. A thread departs from the cell
+ * it arrived in, so no cell ever goes below zero and a single non-zero cell is enough.
+ * */
+class ReaderIndicator {
+
+    // each cell gets a cache line of its own
+    private static final int PADDING = 8;
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    ReaderIndicator(int cells) {
+        int size = Locks.tableSizeFor(cells);
+        this.cells = new AtomicLongArray(size * PADDING);
+        this.mask = size - 1;
+    }
+
+    int size() {
+        return this.mask + 1;
+    }
+
+    /*
+     * Returns the cell arrived in, for a departure that may happen on another thread.
+     * */
+    int arrive() {
+        int index = this.index();
+        this.cells.getAndIncrement(index);
+        return index;
+    }
+
+    void depart() {
+        this.cells.getAndDecrement(this.index());
+    }
+
+    void depart(int index) {
+        this.cells.getAndDecrement(index);
+    }
+
+    boolean isEmpty() {
+        for (int i = 0; i < this.cells.length(); i += PADDING) {
+            if (this.cells.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int index() {
+        // thread ids are sequential, so they are spread before being masked
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (h >>> 32) & this.mask) * PADDING;
+    }
+}
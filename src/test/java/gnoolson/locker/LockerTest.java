@@ -3,13 +3,33 @@ package gnoolson.locker;
 
 import org.junit.jupiter.api.RepeatedTest;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class LockerTest {
 
@@ -39,6 +59,7 @@ class LockerTest {
 
         cdl.await();
         ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
 
         assertEquals(threads * 5, c1.value);
         assertEquals(threads * 5, c2.value);
@@ -49,6 +70,56 @@ class LockerTest {
         assertFalse(locker.hasLockedThreads());
     }
 
+    @RepeatedTest(value = 32, name = "{currentRepetition}/{totalRepetitions}")
+    public void many_locks_single_stripe() throws InterruptedException {
+        Locker locker = new OptimisticLocalLocker(0, 5, 2000, 1);
+
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        Counter c3 = new Counter(String.valueOf(3));
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 3);
+
+        beginChanges(ex, locker, cdl, c1, c2);
+        beginChanges(ex, locker, cdl, c2, c3);
+        beginChanges(ex, locker, cdl, c3, c1);
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 2, c1.value);
+        assertEquals(threads * 2, c2.value);
+        assertEquals(threads * 2, c3.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 32, name = "{currentRepetition}/{totalRepetitions}")
+    public void many_locks_concurrent_registry() throws InterruptedException {
+        Locker locker = new OptimisticLocalLocker(0, 5, 2000, OptimisticLocalLocker.Registry.CONCURRENT);
+
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        Counter c3 = new Counter(String.valueOf(3));
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 3);
+
+        beginChanges(ex, locker, cdl, c1, c2);
+        beginChanges(ex, locker, cdl, c2, c3);
+        beginChanges(ex, locker, cdl, c3, c1);
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 2, c1.value);
+        assertEquals(threads * 2, c2.value);
+        assertEquals(threads * 2, c3.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
     @RepeatedTest(value = 128, name = "{currentRepetition}/{totalRepetitions}")
     public void single_locker() throws InterruptedException {
         Locker locker = new OptimisticLocalLocker();
@@ -66,6 +137,7 @@ class LockerTest {
 
         cdl.await();
         ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
 
         assertEquals(threads * 6, c1.value);
         assertFalse(locker.hasLockedThreads());
@@ -106,6 +178,7 @@ class LockerTest {
 
         cdl.await();
         ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
         assertEquals(threads * threads * 2, c1.value);
         assertFalse(locker.hasLockedThreads());
     }
@@ -152,6 +225,7 @@ class LockerTest {
 
         cdl.await();
         ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
         assertEquals(threads * 2, c1.value);
         assertEquals(threads * 2, c2.value);
         assertFalse(locker.hasLockedThreads());
@@ -209,41 +283,1727 @@ class LockerTest {
 
         cdl.await();
         ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
         assertEquals(threads * 4, c1.value);
         assertEquals(threads * 4, c2.value);
         assertFalse(locker.hasLockedThreads());
     }
 
-    /*
-     *
-     *
-     * */
-    void beginChanges(ExecutorService ex, Locker locker, CountDownLatch cdl, Counter... counters) {
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void many_locks_backoff_strategies() throws InterruptedException {
+        BackoffStrategy[] strategies = {
+                BackoffStrategy.spinYieldPark(16, 16, 10, 1000, TimeUnit.MICROSECONDS),
+                BackoffStrategy.exponential(10, 5000, TimeUnit.MICROSECONDS),
+                BackoffStrategy.adaptive(20, 5000, TimeUnit.MICROSECONDS)
+        };
 
-        String[] ids = Stream.of(counters).map((counter) -> {
-            return counter.id;
-        }).toArray(value -> new String[counters.length]);
+        for (BackoffStrategy strategy : strategies) {
+            Locker locker = new OptimisticLocalLocker(strategy, 10000);
 
-        ex.submit(() -> {
-            for (int i = 0; i < threads; i++) {
-                ex.submit(() -> {
-                    try {
-                        Thread.sleep(1L);
-                        try (Locker.LockedKeys key = locker.lockKeys(ids)) {
-                            for (Counter counter : counters) {
-                                counter.inc();
+            Counter c1 = new Counter(String.valueOf(1));
+            Counter c2 = new Counter(String.valueOf(2));
+            Counter c3 = new Counter(String.valueOf(3));
+            Counter c4 = new Counter(String.valueOf(4));
+
+            ExecutorService ex = Executors.newCachedThreadPool();
+            CountDownLatch cdl = new CountDownLatch(threads * 4);
+
+            beginChanges(ex, locker, cdl, c1, c2, c3);
+            beginChanges(ex, locker, cdl, c2, c3, c4);
+            beginChanges(ex, locker, cdl, c3, c4, c1);
+            beginChanges(ex, locker, cdl, c4, c1, c2);
+
+            cdl.await();
+            ex.shutdownNow();
+            ex.awaitTermination(10, TimeUnit.SECONDS);
+
+            assertEquals(threads * 3, c1.value);
+            assertEquals(threads * 3, c2.value);
+            assertEquals(threads * 3, c3.value);
+            assertEquals(threads * 3, c4.value);
+            assertFalse(locker.hasLockedThreads());
+        }
+    }
+
+    @RepeatedTest(value = 32, name = "{currentRepetition}/{totalRepetitions}")
+    public void many_locks_pessimistic() throws InterruptedException {
+        Locker locker = new PessimisticLocalLocker();
+
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        Counter c3 = new Counter(String.valueOf(3));
+        Counter c4 = new Counter(String.valueOf(4));
+        Counter c5 = new Counter(String.valueOf(5));
+        Counter c6 = new Counter(String.valueOf(6));
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 6);
+
+        beginChanges(ex, locker, cdl, c1, c2, c3, c4, c5);
+        beginChanges(ex, locker, cdl, c2, c3, c4, c5, c6);
+        beginChanges(ex, locker, cdl, c3, c4, c5, c6, c1);
+        beginChanges(ex, locker, cdl, c4, c5, c6, c1, c2);
+        beginChanges(ex, locker, cdl, c5, c6, c1, c2, c3);
+        beginChanges(ex, locker, cdl, c6, c1, c2, c3, c4);
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 5, c1.value);
+        assertEquals(threads * 5, c2.value);
+        assertEquals(threads * 5, c3.value);
+        assertEquals(threads * 5, c4.value);
+        assertEquals(threads * 5, c5.value);
+        assertEquals(threads * 5, c6.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 32, name = "{currentRepetition}/{totalRepetitions}")
+    public void global_lock_pessimistic_fair() throws InterruptedException {
+        Locker locker = new PessimisticLocalLocker(10000, true, 4);
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 4);
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("key1", "key2")) {
+                    c1.inc();
+                    c2.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("key2")) {
+                    try (Locker.LockedKeys lock2 = locker.lockKeys("key2")) {
+                        c2.inc();
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("key1")) {
+                    c1.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lock()) {
+                    try (Locker.LockedKeys lock2 = locker.lock()) {
+                        c1.inc();
+                        c2.inc();
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals(threads * 3, c1.value);
+        assertEquals(threads * 3, c2.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 32, name = "{currentRepetition}/{totalRepetitions}")
+    public void many_locks_pessimistic_ordered() throws InterruptedException {
+        Locker locker = new PessimisticLocalLocker(10000, false, PessimisticLocalLocker.AcquisitionMode.ORDERED);
+
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        Counter c3 = new Counter(String.valueOf(3));
+        Counter c4 = new Counter(String.valueOf(4));
+        Counter c5 = new Counter(String.valueOf(5));
+        Counter c6 = new Counter(String.valueOf(6));
+        Counter global = new Counter("global");
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 7);
+
+        beginChanges(ex, locker, cdl, c1, c2, c3, c4, c5);
+        beginChanges(ex, locker, cdl, c2, c3, c4, c5, c6);
+        beginChanges(ex, locker, cdl, c3, c4, c5, c6, c1);
+        beginChanges(ex, locker, cdl, c4, c5, c6, c1, c2);
+        beginChanges(ex, locker, cdl, c5, c6, c1, c2, c3, c5);
+        beginChanges(ex, locker, cdl, c6, c1, c2, c3, c4);
+
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lock()) {
+                    global.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 5, c1.value);
+        assertEquals(threads * 5, c2.value);
+        assertEquals(threads * 5, c3.value);
+        assertEquals(threads * 5, c4.value);
+        assertEquals(threads * 6, c5.value);
+        assertEquals(threads * 5, c6.value);
+        assertEquals(threads, global.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 32, name = "{currentRepetition}/{totalRepetitions}")
+    public void many_locks_parking() throws InterruptedException {
+        Locker locker = new ParkingLocalLocker(10000);
+
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        Counter c3 = new Counter(String.valueOf(3));
+        Counter c4 = new Counter(String.valueOf(4));
+        Counter c5 = new Counter(String.valueOf(5));
+        Counter c6 = new Counter(String.valueOf(6));
+        Counter global = new Counter("global");
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 8);
+
+        beginChanges(ex, locker, cdl, c1, c2, c3, c4, c5);
+        beginChanges(ex, locker, cdl, c2, c3, c4, c5, c6);
+        beginChanges(ex, locker, cdl, c3, c4, c5, c6, c1);
+        beginChanges(ex, locker, cdl, c4, c5, c6, c1, c2);
+        beginChanges(ex, locker, cdl, c5, c6, c1, c2, c3, c5);
+        beginChanges(ex, locker, cdl, c6, c1, c2, c3, c4);
+
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lock()) {
+                    try (Locker.LockedKeys lock2 = locker.lock()) {
+                        global.inc();
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("1")) {
+                    try (Locker.LockedKeys lock2 = locker.lockKeys("1")) {
+                        c1.inc();
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 6, c1.value);
+        assertEquals(threads * 5, c2.value);
+        assertEquals(threads * 5, c3.value);
+        assertEquals(threads * 5, c4.value);
+        assertEquals(threads * 6, c5.value);
+        assertEquals(threads * 5, c6.value);
+        assertEquals(threads, global.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 16, name = "{currentRepetition}/{totalRepetitions}")
+    public void many_long_keys() throws InterruptedException {
+        LongKeyLocker locker = new OptimisticLocalLocker(1, 10, 10000);
+
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        Counter c3 = new Counter(String.valueOf(3));
+        Counter global = new Counter("global");
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 4);
+
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockLongKeys(1L, 2L)) {
+                    c1.inc();
+                    c2.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockLongKeys(3L, 2L)) {
+                    c3.inc();
+                    c2.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKey(1L)) {
+                    try (Locker.LockedKeys lock2 = locker.lockKey(1L)) {
+                        c1.inc();
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lock()) {
+                    c1.inc();
+                    c2.inc();
+                    c3.inc();
+                    global.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 3, c1.value);
+        assertEquals(threads * 3, c2.value);
+        assertEquals(threads * 2, c3.value);
+        assertEquals(threads, global.value);
+        assertFalse(locker.hasLockedThreads());
+
+        // a long key and the String with the same digits are different keys
+        try (Locker.LockedKeys lock = locker.lockKey(1L)) {
+            assertNotNull(locker.tryLockKeys("1"));
+        }
+
+        // "a" hashes to 97 like 97L, yet a long key leaves the stamps of String keys alone
+        Locker.ReadStamp stamp = locker.tryOptimisticRead("a");
+        locker.lockKey(97L).release();
+        assertTrue(stamp.validate());
+        // no keys at all is still a call with String keys
+        locker.lockKeys().release();
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void long_key_table() {
+        LongKeyTable<Long> table = new LongKeyTable<>();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random();
+
+        for (int i = 0; i < 100000; i++) {
+            // few distinct keys, many of them sequential, so that clusters form and get broken up
+            long key = random.nextBoolean() ? random.nextInt(512) : random.nextLong();
+            Long value = expected.get(key);
+            if (value == null) {
+                value = (long) i;
+                table.put(key, value);
+                expected.put(key, value);
+            } else {
+                assertTrue(table.remove(key, value));
+                expected.remove(key);
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), table.get(entry.getKey()));
+            assertFalse(table.remove(entry.getKey(), -1L));
+        }
+        assertNull(table.get(-1));
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void reader_indicator() throws Exception {
+        for (int cells : new int[]{0, 1, 3, 64, 1 << 20}) {
+            assertEquals(Locks.tableSizeFor(cells), new ReaderIndicator(cells).size());
+        }
+
+        ReaderIndicator indicator = new ReaderIndicator(4);
+        ExecutorService ex = Executors.newCachedThreadPool();
+        assertTrue(indicator.isEmpty());
+        // a departure on another thread gives back the cell of the arrival
+        int cell = indicator.arrive();
+        assertFalse(indicator.isEmpty());
+        ex.submit(() -> indicator.depart(cell)).get();
+        assertTrue(indicator.isEmpty());
+
+        // keyed side: arrive, then check the global flag; global side: publish the flag, then wait for the cells
+        AtomicBoolean global = new AtomicBoolean();
+        AtomicInteger inside = new AtomicInteger();
+        AtomicBoolean overlap = new AtomicBoolean();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try {
+                    while (!stop.get()) {
+                        indicator.arrive();
+                        if (global.get()) {
+                            // backs off until the global side is done
+                            indicator.depart();
+                            while (global.get()) {
+                                Thread.yield();
                             }
-                        } finally {
-                            cdl.countDown();
+                            continue;
                         }
-                    } catch (Exception e) {
-                        System.out.println(e.getMessage());
-                        throw new RuntimeException(e);
+                        inside.incrementAndGet();
+                        inside.decrementAndGet();
+                        indicator.depart();
                     }
-                });
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < 1000; i++) {
+            global.set(true);
+            while (!indicator.isEmpty()) {
+                Thread.yield();
             }
-        });
+            if (inside.get() != 0) {
+                overlap.set(true);
+            }
+            global.set(false);
+        }
+        stop.set(true);
+        cdl.await();
+        ex.shutdown();
 
+        assertFalse(overlap.get());
+        assertTrue(indicator.isEmpty());
+    }
+
+    @RepeatedTest(value = 16, name = "{currentRepetition}/{totalRepetitions}")
+    public void typed_keys() throws Exception {
+        KeyLocker<EntityKey> locker = new OptimisticKeyLocker<>(BackoffStrategy.uniform(1, 10, TimeUnit.MILLISECONDS), 10000, TimeUnit.MILLISECONDS);
+
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        Counter global = new Counter("global");
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 3);
+
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                // equal keys, never the same instance
+                try (Locker.LockedKeys lock = locker.lockKeys(new EntityKey("tenant", "order", 1), new EntityKey("tenant", "order", 2))) {
+                    c1.inc();
+                    c2.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys(new EntityKey("tenant", "order", 1))) {
+                    try (Locker.LockedKeys lock2 = locker.lockKeys(new EntityKey("tenant", "order", 1))) {
+                        c1.inc();
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lock()) {
+                    c1.inc();
+                    c2.inc();
+                    global.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 3, c1.value);
+        assertEquals(threads * 2, c2.value);
+        assertEquals(threads, global.value);
+        assertFalse(locker.hasLockedThreads());
+
+        Locker.ReadStamp stamp = locker.tryOptimisticRead(new EntityKey("tenant", "order", 1));
+        try (Locker.LockedKeys lock = locker.lockKeys(new EntityKey("tenant", "order", 1))) {
+            // the lock is reentrant, so only another thread finds the key taken
+            assertNull(CompletableFuture.supplyAsync(() -> locker.tryLockKeys(new EntityKey("tenant", "order", 1))).get());
+            try (Locker.LockedKeys lock2 = locker.tryLockKeys(new EntityKey("other", "order", 1))) {
+                assertNotNull(lock2);
+            }
+        }
+        assertFalse(stamp.validate());
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void hashing_strategy() throws Exception {
+        HashingStrategy<String> ignoreCase = new HashingStrategy<String>() {
+            @Override
+            public int hashCode(String key) {
+                return key.toLowerCase().hashCode();
+            }
+
+            @Override
+            public boolean equals(String key, String other) {
+                return key.equalsIgnoreCase(other);
+            }
+        };
+        KeyLocker<String> locker = new OptimisticKeyLocker<>(ignoreCase);
+
+        try (Locker.LockedKeys lock = locker.lockKeys("Key")) {
+            assertNull(CompletableFuture.supplyAsync(() -> locker.tryLockKeys("KEY")).get());
+            try (Locker.LockedKeys lock2 = locker.tryLockKeys("other")) {
+                assertNotNull(lock2);
+            }
+        }
+        try (Locker.LockedKeys lock = locker.tryLockKeys("key")) {
+            assertNotNull(lock);
+        }
+        assertFalse(locker.hasLockedThreads());
+
+        // many keys, so that the tables of the stripes grow and shrink again
+        List<Locker.LockedKeys> locks = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            locks.add(locker.lockKeys("key" + i));
+        }
+        assertEquals(0, CompletableFuture.supplyAsync(() -> {
+            int locked = 0;
+            for (int i = 0; i < 10000; i++) {
+                if (locker.tryLockKeys("KEY" + i) != null) {
+                    locked++;
+                }
+            }
+            return locked;
+        }).get());
+        locks.forEach(Locker.LockedKeys::release);
+        assertFalse(locker.hasLockedThreads());
+
+        assertThrows(RuntimeException.class, () -> new OptimisticKeyLocker<>(BackoffStrategy.uniform(0, 5, TimeUnit.MILLISECONDS), 2000,
+                TimeUnit.MILLISECONDS, OptimisticKeyLocker.Registry.CONCURRENT, ignoreCase, null));
+    }
+
+    @RepeatedTest(value = 16, name = "{currentRepetition}/{totalRepetitions}")
+    public void shared_locks() throws InterruptedException {
+        Locker[] lockers = {
+                new OptimisticLocalLocker(1, 10, 10000),
+                new OptimisticLocalLocker(1, 10, 10000, OptimisticLocalLocker.Registry.CONCURRENT),
+                new PessimisticLocalLocker(10000),
+                new PessimisticLocalLocker(10000, true),
+                new ParkingLocalLocker(10000)
+        };
+
+        for (Locker locker : lockers) {
+            ExecutorService ex = Executors.newCachedThreadPool();
+            CountDownLatch readersInside = new CountDownLatch(threads);
+            CountDownLatch cdl = new CountDownLatch(threads * 3);
+            Counter c1 = new Counter(String.valueOf(1));
+            Counter c2 = new Counter(String.valueOf(2));
+            AtomicInteger inconsistentReads = new AtomicInteger();
+            AtomicInteger lonelyReaders = new AtomicInteger();
+
+            for (int i = 0; i < threads; i++) {
+                // every reader waits inside the lock for all the others, which only works if they share it
+                ex.submit(() -> {
+                    try (Locker.LockedKeys lock = locker.lockKeysShared("key")) {
+                        readersInside.countDown();
+                        if (!readersInside.await(5, TimeUnit.SECONDS)) {
+                            lonelyReaders.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        cdl.countDown();
+                    }
+                });
+            }
+            readersInside.await();
+
+            for (int i = 0; i < threads; i++) {
+                ex.submit(() -> {
+                    try (Locker.LockedKeys lock = locker.lockKeys("key")) {
+                        c1.inc();
+                        c2.inc();
+                    } finally {
+                        cdl.countDown();
+                    }
+                });
+
+                ex.submit(() -> {
+                    try (Locker.LockedKeys lock = locker.lockKeysShared("key")) {
+                        if (c1.value != c2.value) {
+                            inconsistentReads.incrementAndGet();
+                        }
+                    } finally {
+                        cdl.countDown();
+                    }
+                });
+            }
+
+            cdl.await();
+            ex.shutdownNow();
+            ex.awaitTermination(10, TimeUnit.SECONDS);
+            assertEquals(0, lonelyReaders.get());
+            assertEquals(0, inconsistentReads.get());
+            assertEquals(threads, c1.value);
+            assertFalse(locker.hasLockedThreads());
+        }
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void optimistic_read() throws InterruptedException {
+        Locker[] lockers = {new OptimisticLocalLocker(1, 10, 10000), new PessimisticLocalLocker(10000), new ParkingLocalLocker(10000)};
+
+        for (Locker locker : lockers) {
+            Locker.ReadStamp stamp = locker.tryOptimisticRead("key1", "key2");
+            assertTrue(stamp.validate());
+
+            try (Locker.LockedKeys lock = locker.lockKeysShared("key1")) {
+                assertTrue(stamp.validate());
+            }
+            try (Locker.LockedKeys lock = locker.lockKeys("key2")) {
+                assertFalse(locker.tryOptimisticRead("key2").validate());
+            }
+            assertFalse(stamp.validate());
+
+            stamp = locker.tryOptimisticRead("key1");
+            try (Locker.LockedKeys lock = locker.lock()) {
+                assertFalse(locker.tryOptimisticRead("key1").validate());
+            }
+            assertFalse(stamp.validate());
+
+            ExecutorService ex = Executors.newCachedThreadPool();
+            CountDownLatch cdl = new CountDownLatch(threads * 2);
+            Counter c1 = new Counter(String.valueOf(1));
+            Counter c2 = new Counter(String.valueOf(2));
+            AtomicInteger inconsistentReads = new AtomicInteger();
+
+            for (int i = 0; i < threads; i++) {
+                ex.submit(() -> {
+                    try (Locker.LockedKeys lock = locker.lockKeys("key1")) {
+                        c1.inc();
+                        c2.inc();
+                    } finally {
+                        cdl.countDown();
+                    }
+                });
+
+                ex.submit(() -> {
+                    try {
+                        for (int j = 0; j < threads; j++) {
+                            Locker.ReadStamp readStamp = locker.tryOptimisticRead("key1");
+                            int v1 = c1.value;
+                            int v2 = c2.value;
+                            if (readStamp.validate() && v1 != v2) {
+                                inconsistentReads.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        cdl.countDown();
+                    }
+                });
+            }
+
+            cdl.await();
+            ex.shutdownNow();
+            ex.awaitTermination(10, TimeUnit.SECONDS);
+            assertEquals(0, inconsistentReads.get());
+            assertEquals(threads, c1.value);
+            assertFalse(locker.hasLockedThreads());
+        }
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void try_lock() throws Exception {
+        Locker[] lockers = {new OptimisticLocalLocker(1, 10, 10000), new PessimisticLocalLocker(10000), new ParkingLocalLocker(10000)};
+
+        for (Locker locker : lockers) {
+            ExecutorService ex = Executors.newCachedThreadPool();
+            CountDownLatch locked = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("key2")) {
+                    locked.countDown();
+                    release.await();
+                }
+                return null;
+            });
+            locked.await();
+
+            try (Locker.LockedKeys lock = locker.tryLockKeys("key1")) {
+                assertNotNull(lock);
+            }
+            assertNull(locker.tryLockKeys("key1", "key2"));
+            assertNull(locker.tryLockKeys(20, TimeUnit.MILLISECONDS, "key1", "key2"));
+
+            Future<Boolean> waiting = ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.tryLockKeys(10, TimeUnit.SECONDS, "key1", "key2")) {
+                    return lock != null;
+                }
+            });
+            release.countDown();
+            assertTrue(waiting.get());
+
+            ex.shutdownNow();
+            ex.awaitTermination(10, TimeUnit.SECONDS);
+            assertFalse(locker.hasLockedThreads());
+        }
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void sub_millisecond_timeouts() throws Exception {
+        Locker[] lockers = {
+                new OptimisticLocalLocker(BackoffStrategy.spinYieldPark(16, 16, 10, 100, TimeUnit.MICROSECONDS), 500, TimeUnit.MICROSECONDS),
+                new ParkingLocalLocker(500, TimeUnit.MICROSECONDS)
+        };
+
+        for (Locker locker : lockers) {
+            ExecutorService ex = Executors.newCachedThreadPool();
+            CountDownLatch locked = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("key")) {
+                    locked.countDown();
+                    release.await();
+                }
+                return null;
+            });
+            locked.await();
+
+            long start = System.nanoTime();
+            RuntimeException e = assertThrows(RuntimeException.class, () -> locker.lockKeys("key"));
+            assertEquals("Could not lock. Too much time to try (500000ns)", e.getMessage());
+            assertNull(locker.tryLockKeys(200, TimeUnit.MICROSECONDS, "key"));
+            // generous bound: only proves that neither call waited in whole milliseconds per attempt
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+            release.countDown();
+            ex.shutdown();
+            ex.awaitTermination(10, TimeUnit.SECONDS);
+            assertFalse(locker.hasLockedThreads());
+        }
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void lock_metrics() throws Exception {
+        LockMetrics metrics = new LockMetrics();
+        Locker locker = new OptimisticLocalLocker(BackoffStrategy.exponential(10, 1000, TimeUnit.MICROSECONDS), 50, TimeUnit.MILLISECONDS,
+                OptimisticLocalLocker.Registry.STRIPED, metrics);
+
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 2);
+        beginChanges(ex, locker, cdl, c1, c2);
+        beginChanges(ex, locker, cdl, c2, c1);
+        cdl.await();
+
+        assertEquals(threads * 2, c1.value);
+        assertEquals(threads * 2, metrics.getAcquisitions());
+        assertEquals(threads * 2, metrics.getReleases());
+        assertEquals(threads * 2, metrics.getWaitTimes().getCount());
+        assertEquals(threads * 2, metrics.getHoldTimes().getCount());
+        assertEquals(0, metrics.getTimeouts());
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ex.submit(() -> {
+            try (Locker.LockedKeys lock = locker.lockKeys("1")) {
+                locked.countDown();
+                release.await();
+            }
+            return null;
+        });
+        locked.await();
+        assertThrows(RuntimeException.class, () -> locker.lockKeys("1"));
+        assertNull(locker.tryLockKeys(1, TimeUnit.MILLISECONDS, "1"));
+        release.countDown();
+        ex.shutdown();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(2, metrics.getTimeouts());
+        assertTrue(metrics.getRetriesMax() > 0);
+        assertTrue(metrics.getHoldTimeMax() >= metrics.getHoldTime99thPercentile());
+
+        ObjectName name = metrics.registerMBean("lock_metrics");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(threads * 2L + 1, server.getAttribute(name, "Acquisitions"));
+            assertEquals(2L, server.getAttribute(name, "Timeouts"));
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, metrics.getAcquisitions());
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void contention_profiler() throws Exception {
+        ContentionProfiler profiler = new ContentionProfiler(16, 1);
+        LockMetrics metrics = new LockMetrics();
+        Locker locker = new OptimisticLocalLocker(BackoffStrategy.exponential(10, 100, TimeUnit.MICROSECONDS), 10, TimeUnit.SECONDS,
+                OptimisticLocalLocker.Registry.STRIPED, LockerListener.all(metrics, profiler));
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ex.submit(() -> {
+            try (Locker.LockedKeys lock = locker.lockKeys("hot", "warm")) {
+                locked.countDown();
+                release.await();
+            }
+            return null;
+        });
+        locked.await();
+
+        for (int i = 0; i < 100; i++) {
+            assertNull(locker.tryLockKeys("hot"));
+            if (i % 3 == 0) {
+                assertNull(locker.tryLockKeys("warm"));
+            }
+            // more distinct keys than the sketch holds, each seen too rarely to displace the hot ones
+            try (Locker.LockedKeys lock = locker.lockKeys("cold" + i)) {
+                profiler.contended("cold" + i, 0);
+            }
+        }
+        Future<Boolean> waiting = ex.submit(() -> {
+            try (Locker.LockedKeys lock = locker.lockKeys("hot")) {
+                return lock != null;
+            }
+        });
+        Thread.sleep(20);
+        release.countDown();
+        assertTrue(waiting.get());
+        ex.shutdown();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        List<ContentionProfiler.HotKey> hotKeys = profiler.getHotKeys(2);
+        assertEquals(2, hotKeys.size());
+        assertEquals("hot", hotKeys.get(0).getKey());
+        assertTrue(hotKeys.get(0).getCount() > 100);
+        assertTrue(hotKeys.get(0).getWaitNanos() > 0);
+        assertEquals("warm", hotKeys.get(1).getKey());
+        assertEquals(16, profiler.getHotKeys().length);
+        assertEquals(102, metrics.getAcquisitions());
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 16, name = "{currentRepetition}/{totalRepetitions}")
+    public void async_locks() throws InterruptedException {
+        AsyncLocker locker = new PessimisticLocalLocker(10000, true);
+
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        Counter c3 = new Counter(String.valueOf(3));
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 2);
+        beginChanges(ex, locker, cdl, c1, c2);
+        beginChanges(ex, locker, cdl, c2, c3);
+
+        for (int i = 0; i < threads * 8; i++) {
+            futures.add(locker.lockKeysAsync("1", "3").thenAccept(lock -> {
+                c1.inc();
+                c3.inc();
+                lock.release();
+            }));
+        }
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lock()) {
+                    c1.inc();
+                    c2.inc();
+                    c3.inc();
+                }
+            });
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        cdl.await();
+        ex.shutdown();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 10, c1.value);
+        assertEquals(threads * 3, c2.value);
+        assertEquals(threads * 10, c3.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    /*
+     *
+     *
+     * */
+    void beginChanges(ExecutorService ex, Locker locker, CountDownLatch cdl, Counter... counters) {
+
+        String[] ids = Stream.of(counters).map((counter) -> {
+            return counter.id;
+        }).toArray(value -> new String[counters.length]);
+
+        ex.submit(() -> {
+            for (int i = 0; i < threads; i++) {
+                ex.submit(() -> {
+                    try {
+                        Thread.sleep(1L);
+                        try (Locker.LockedKeys key = locker.lockKeys(ids)) {
+                            for (Counter counter : counters) {
+                                counter.inc();
+                            }
+                        } finally {
+                            cdl.countDown();
+                        }
+                    } catch (Exception e) {
+                        System.out.println(e.getMessage());
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+        });
+
+    }
+
+    @RepeatedTest(value = 16, name = "{currentRepetition}/{totalRepetitions}")
+    public void single_key() throws Exception {
+        LockMetrics metrics = new LockMetrics();
+        Locker[] lockers = {
+                new OptimisticLocalLocker(1, 10, 10000),
+                new OptimisticLocalLocker(BackoffStrategy.adaptive(10, 1000, TimeUnit.MICROSECONDS), 10000, TimeUnit.MILLISECONDS,
+                        OptimisticLocalLocker.Registry.CONCURRENT, metrics),
+                new PessimisticLocalLocker(10000),
+                new ParkingLocalLocker(10000)
+        };
+
+        for (Locker locker : lockers) {
+            Counter c1 = new Counter(String.valueOf(1));
+            Counter global = new Counter("global");
+
+            ExecutorService ex = Executors.newCachedThreadPool();
+            CountDownLatch cdl = new CountDownLatch(threads * 3);
+
+            for (int i = 0; i < threads; i++) {
+                ex.submit(() -> {
+                    try (Locker.LockedKeys lock = locker.lockKey("1")) {
+                        c1.inc();
+                    } finally {
+                        cdl.countDown();
+                    }
+                });
+
+                ex.submit(() -> {
+                    try (Locker.LockedKeys lock = locker.lockKey("1")) {
+                        try (Locker.LockedKeys lock2 = locker.lockKey("1")) {
+                            c1.inc();
+                        }
+                    } finally {
+                        cdl.countDown();
+                    }
+                });
+
+                ex.submit(() -> {
+                    try (Locker.LockedKeys lock = locker.lock()) {
+                        c1.inc();
+                        global.inc();
+                    } finally {
+                        cdl.countDown();
+                    }
+                });
+            }
+
+            cdl.await();
+            ex.shutdownNow();
+            ex.awaitTermination(10, TimeUnit.SECONDS);
+
+            assertEquals(threads * 3, c1.value);
+            assertEquals(threads, global.value);
+            assertFalse(locker.hasLockedThreads());
+        }
+        assertEquals(threads * 4, metrics.getAcquisitions());
+        assertEquals(threads * 4, metrics.getReleases());
+
+        // a released handle stays released, whatever is locked after it
+        Locker locker = lockers[0];
+        Locker.LockedKeys lock = locker.lockKey("1");
+        assertEquals("Locked keys: 1; ", lock.toString());
+        lock.release();
+        lock.release();
+        Locker.LockedKeys lock2 = locker.lockKey("2");
+        assertNotSame(lock, lock2);
+        assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "1")).get());
+        lock.close();
+        assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "2")).get());
+        lock2.close();
+        assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "2")).get());
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void recycled_locks() throws InterruptedException {
+        LongKeyLocker locker = new OptimisticLocalLocker(BackoffStrategy.spinYieldPark(4, 4, 1, 100, TimeUnit.MICROSECONDS), 10000, TimeUnit.MILLISECONDS);
+        // keys keep going idle and locked again, so their lock objects are reused all the time, also for other keys
+        int keys = 256;
+        int iterations = 1000;
+        int[] counts = new int[keys];
+        int[] longCounts = new int[keys];
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try {
+                    Random random = new Random();
+                    for (int j = 0; j < iterations; j++) {
+                        int k1 = random.nextInt(keys);
+                        int k2 = random.nextInt(keys);
+                        try (Locker.LockedKeys lock = locker.lockKeys(String.valueOf(k1), String.valueOf(k2))) {
+                            counts[k1]++;
+                            counts[k2]++;
+                        }
+                        try (Locker.LockedKeys lock = locker.lockKey(String.valueOf(k1))) {
+                            counts[k1]++;
+                        }
+                        try (Locker.LockedKeys lock = locker.lockKey((long) k2)) {
+                            longCounts[k2]++;
+                        }
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * iterations * 3, Arrays.stream(counts).sum());
+        assertEquals(threads * iterations, Arrays.stream(longCounts).sum());
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 16, name = "{currentRepetition}/{totalRepetitions}")
+    public void hierarchical_locks() throws InterruptedException {
+        Locker locker = new HierarchicalLocalLocker(BackoffStrategy.uniform(1, 10, TimeUnit.MILLISECONDS), 10000, TimeUnit.MILLISECONDS);
+
+        Counter o1 = new Counter("tenant/1/order/1");
+        Counter o2 = new Counter("tenant/1/order/2");
+        Counter o3 = new Counter("tenant/2/order/1");
+        Counter global = new Counter("global");
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 5);
+
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("tenant/1/order/1", "tenant/2/order/1")) {
+                    o1.inc();
+                    o3.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("tenant/1/order/2")) {
+                    o2.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            // the whole tenant
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("tenant/1")) {
+                    try (Locker.LockedKeys lock2 = locker.lockKeys("tenant/1/order/1")) {
+                        o1.inc();
+                        o2.inc();
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeysShared("tenant/2")) {
+                    assertTrue(o3.value >= 0);
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lock()) {
+                    o1.inc();
+                    o2.inc();
+                    o3.inc();
+                    global.inc();
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 3, o1.value);
+        assertEquals(threads * 3, o2.value);
+        assertEquals(threads * 2, o3.value);
+        assertEquals(threads, global.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void hierarchical_subtrees() throws Exception {
+        Locker locker = new HierarchicalLocalLocker();
+
+        Locker.ReadStamp order = locker.tryOptimisticRead("tenant/42/order/7");
+        Locker.ReadStamp otherTenant = locker.tryOptimisticRead("tenant/44");
+        try (Locker.LockedKeys lock = locker.lockKeys("tenant/42")) {
+            // only keys of the subtree and its ancestors are excluded
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "tenant/42/order/7")).get());
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "tenant/42")).get());
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "tenant")).get());
+            assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "tenant/43/order/7")).get());
+            assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "tenant/420")).get());
+            assertNull(CompletableFuture.supplyAsync(() -> locker.tryLockKeys(1, TimeUnit.MILLISECONDS, "")).get());
+
+            // the owner may lock below its key
+            try (Locker.LockedKeys lock2 = locker.lockKeys("tenant/42/order/7")) {
+                assertNotNull(lock2);
+            }
+        }
+        assertFalse(order.validate());
+        assertTrue(otherTenant.validate());
+
+        try (Locker.LockedKeys lock = locker.lockKeysShared("tenant/42")) {
+            Locker.ReadStamp stamp = locker.tryOptimisticRead("tenant/42/order/7");
+            assertTrue(CompletableFuture.supplyAsync(() -> {
+                // shared holders of the subtree and below it get along, writers below it do not
+                try (Locker.LockedKeys lock2 = locker.lockKeysShared("tenant/42/order/7")) {
+                    return lock2 != null && !isFree(locker, "tenant/42/order/7");
+                }
+            }).get());
+            assertTrue(stamp.validate());
+        }
+
+        Locker.ReadStamp tenant = locker.tryOptimisticRead("tenant/42");
+        try (Locker.LockedKeys lock = locker.lockKeys("tenant/42/order/7")) {
+            assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "tenant/42/order/8")).get());
+        }
+        // a write below the key counts as a write of the key
+        assertFalse(tenant.validate());
+        assertFalse(locker.hasLockedThreads());
+
+        // holds are not capped: many reentrant exclusive holds, and more shared ones than 18 bits can count
+        List<Locker.LockedKeys> holds = new ArrayList<>();
+        for (int i = 0; i < 4096; i++) {
+            holds.add(locker.lockKeys("tenant/42"));
+        }
+        assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "tenant/42/order/7")).get());
+        holds.forEach(Locker.LockedKeys::release);
+        holds.clear();
+        for (int i = 0; i < (1 << 18) + 1; i++) {
+            holds.add(locker.lockKeysShared("tenant/42/order/7"));
+        }
+        assertNull(CompletableFuture.supplyAsync(() -> locker.tryLockKeys("tenant")).get());
+        holds.forEach(Locker.LockedKeys::release);
+        assertFalse(locker.hasLockedThreads());
+        assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "tenant")).get());
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void global_lock_not_starved() throws InterruptedException {
+        // the keys are never free all at once, but a global lock must not wait longer than 2 seconds
+        Locker locker = new OptimisticLocalLocker(1, 10, 2000);
+        int globalLocks = 16;
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c3 = new Counter(String.valueOf(3));
+        AtomicInteger iterations = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try {
+                    while (!stop.get()) {
+                        try (Locker.LockedKeys lock = locker.lockKeys("1", "2")) {
+                            c1.inc();
+                            // holding keys, more keys may still be locked while the global lock is pending
+                            try (Locker.LockedKeys lock2 = locker.lockKey("3")) {
+                                c3.inc();
+                            }
+                        }
+                        iterations.incrementAndGet();
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        for (int i = 0; i < globalLocks; i++) {
+            Thread.sleep(1L);
+            try (Locker.LockedKeys lock = locker.lock()) {
+                c1.inc();
+            }
+        }
+        stop.set(true);
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(iterations.get() + globalLocks, c1.value);
+        assertEquals(iterations.get(), c3.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void nested_lock_during_global_lock() throws Exception {
+        Locker[] lockers = {
+                new OptimisticLocalLocker(1, 10, 2000),
+                new PessimisticLocalLocker(2000),
+                new PessimisticLocalLocker(2000, false, PessimisticLocalLocker.AcquisitionMode.ORDERED),
+                new ParkingLocalLocker(2000)
+        };
+
+        for (Locker locker : lockers) {
+            ExecutorService ex = Executors.newCachedThreadPool();
+            CountDownLatch held = new CountDownLatch(1);
+            CountDownLatch pending = new CountDownLatch(1);
+
+            Future<Boolean> nested = ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("a");
+                     Locker.LockedKeys lock2 = locker.lockKeysShared("s")) {
+                    held.countDown();
+                    pending.await();
+                    // the global lock waits for these keys, so more keys and shared re-entries must not wait for it
+                    try (Locker.LockedKeys lock3 = locker.lockKeys("b");
+                         Locker.LockedKeys lock4 = locker.lockKeysShared("s");
+                         Locker.LockedKeys lock5 = locker.lockKeys("a", "c")) {
+                        return lock3 != null && lock4 != null && lock5 != null;
+                    }
+                }
+            });
+            held.await();
+            CompletableFuture<Thread> globalThread = new CompletableFuture<>();
+            Future<Boolean> global = ex.submit(() -> {
+                globalThread.complete(Thread.currentThread());
+                try (Locker.LockedKeys lock = locker.lock()) {
+                    return lock != null;
+                }
+            });
+            // the global lock is pending once it waits for the keys
+            while (globalThread.get().getState() == Thread.State.RUNNABLE) {
+                Thread.sleep(1L);
+            }
+            pending.countDown();
+
+            assertTrue(nested.get());
+            assertTrue(global.get());
+            ex.shutdown();
+            assertFalse(locker.hasLockedThreads());
+        }
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void global_lock_waits_for_keys_taken_while_pending() throws Exception {
+        // two stripes: "a" hashes to the second one and "b" to the first
+        PessimisticLocalLocker locker = new PessimisticLocalLocker(5000, false, 2);
+        ExecutorService ex = Executors.newCachedThreadPool();
+        AtomicInteger keyed = new AtomicInteger();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch pending = new CountDownLatch(1);
+
+        Future<?> holder = ex.submit(() -> {
+            Locker.LockedKeys a = locker.lockKeys("a");
+            keyed.incrementAndGet();
+            held.countDown();
+            pending.await();
+            // the pending global lock has already drained the stripe of "b"
+            Locker.LockedKeys b = locker.lockKeys("b");
+            a.release();
+            Thread.sleep(50L);
+            keyed.decrementAndGet();
+            b.release();
+            return null;
+        });
+        held.await();
+        CompletableFuture<Thread> globalThread = new CompletableFuture<>();
+        Future<Integer> global = ex.submit(() -> {
+            globalThread.complete(Thread.currentThread());
+            try (Locker.LockedKeys lock = locker.lock()) {
+                return keyed.get();
+            }
+        });
+        while (globalThread.get().getState() == Thread.State.RUNNABLE) {
+            Thread.sleep(1L);
+        }
+        pending.countDown();
+
+        holder.get();
+        assertEquals(0, global.get().intValue());
+        ex.shutdown();
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void key_sets() throws Exception {
+        Locker[] lockers = {
+                new OptimisticLocalLocker(1, 10, 10000),
+                new OptimisticLocalLocker(0, 5, 10000, OptimisticLocalLocker.Registry.CONCURRENT),
+                new PessimisticLocalLocker(10000),
+                new ParkingLocalLocker(10000)
+        };
+
+        for (Locker locker : lockers) {
+            int batches = 64;
+            int sets = 100;
+            int[] counts = new int[threads];
+            Counter global = new Counter("global");
+            int globalLocks = 16;
+            AtomicInteger heldSets = new AtomicInteger();
+            AtomicBoolean overlap = new AtomicBoolean();
+
+            ExecutorService ex = Executors.newCachedThreadPool();
+            CountDownLatch cdl = new CountDownLatch(threads + 1);
+
+            for (int i = 0; i < threads; i++) {
+                int thread = i;
+                ex.submit(() -> {
+                    try {
+                        for (int j = 0; j < batches; j++) {
+                            // the sets of a batch overlap each other, not the sets of other threads
+                            List<String[]> keySets = new ArrayList<>();
+                            for (int k = 0; k < sets; k++) {
+                                keySets.add(new String[]{thread + ":" + k, thread + ":" + (k + 1) % sets});
+                            }
+                            List<Locker.LockedKeys> lockedKeySets = locker.lockKeySets(keySets);
+                            heldSets.addAndGet(sets);
+                            assertEquals(sets, lockedKeySets.size());
+                            counts[thread] += sets;
+                            heldSets.addAndGet(-sets);
+                            lockedKeySets.forEach(Locker.LockedKeys::release);
+                        }
+                    } finally {
+                        cdl.countDown();
+                    }
+                });
+            }
+            ex.submit(() -> {
+                try {
+                    for (int j = 0; j < globalLocks; j++) {
+                        try (Locker.LockedKeys lock = locker.lock()) {
+                            // no set may be held at the same time
+                            if (heldSets.get() != 0) {
+                                overlap.set(true);
+                            }
+                            global.inc();
+                        }
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+
+            cdl.await();
+            ex.shutdownNow();
+            ex.awaitTermination(10, TimeUnit.SECONDS);
+
+            assertEquals(threads * batches * sets, Arrays.stream(counts).sum());
+            assertEquals(globalLocks, global.value);
+            assertFalse(overlap.get());
+            assertFalse(locker.hasLockedThreads());
+        }
+
+        // a set that stays taken fails the batch, and the sets already locked are released
+        Locker locker = new OptimisticLocalLocker(1, 10, 100);
+        try (Locker.LockedKeys lock = locker.lockKeys("taken")) {
+            assertThrows(RuntimeException.class, () -> CompletableFuture.supplyAsync(
+                    () -> locker.lockKeySets(Arrays.asList(new String[]{"free"}, new String[]{"free2", "taken"}))).join());
+            assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "free") && isFree(locker, "free2")).get());
+        }
+        assertFalse(locker.hasLockedThreads());
+
+        // so are they when the batch is interrupted while backing off
+        Locker interruptible = new OptimisticLocalLocker(BackoffStrategy.spinYieldPark(4, 4, 1, 100, TimeUnit.MICROSECONDS), 10000, TimeUnit.MILLISECONDS);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        Locker.LockedKeys taken = other.submit(() -> interruptible.lockKeys("taken")).get();
+        Thread.currentThread().interrupt();
+        assertThrows(RuntimeException.class,
+                () -> interruptible.lockKeySets(Arrays.asList(new String[]{"free"}, new String[]{"free2", "taken"})));
+        assertFalse(Thread.interrupted());
+        assertTrue(other.submit(() -> isFree(interruptible, "free") && isFree(interruptible, "free2")).get());
+        other.submit(taken::release).get();
+        other.shutdown();
+        assertFalse(interruptible.hasLockedThreads());
+
+        // and when the listener throws for a set: that set is unlocked and the later ones unpinned
+        AtomicInteger acquisitions = new AtomicInteger();
+        Locker failing = new OptimisticLocalLocker(BackoffStrategy.uniform(1, 10, TimeUnit.MILLISECONDS), 1000, TimeUnit.MILLISECONDS,
+                OptimisticLocalLocker.Registry.STRIPED, new LockerListener() {
+            @Override
+            public void acquired(long waitNanos, int retries) {
+                if (acquisitions.incrementAndGet() == 2) {
+                    throw new IllegalStateException("listener");
+                }
+            }
+        });
+        assertThrows(IllegalStateException.class,
+                () -> failing.lockKeySets(Arrays.asList(new String[]{"a"}, new String[]{"b", "c"}, new String[]{"d"})));
+        assertFalse(failing.hasLockedThreads());
+        assertTrue(CompletableFuture.supplyAsync(() -> isFree(failing, "a") && isFree(failing, "b") && isFree(failing, "d")).get());
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void upgrade_downgrade() throws Exception {
+        OptimisticLocalLocker locker = new OptimisticLocalLocker(BackoffStrategy.spinYieldPark(4, 4, 1, 100, TimeUnit.MICROSECONDS), 10000, TimeUnit.MILLISECONDS);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+
+        KeyLocker.AdjustableKeys<String> lock = locker.lockKeys("a", "b");
+        Locker.ReadStamp stamp = locker.tryOptimisticRead("a");
+        lock.downgrade();
+        assertFalse(stamp.validate());
+        assertTrue(locker.tryOptimisticRead("a").validate());
+        assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "a")).get());
+        Locker.LockedKeys reader = other.submit(() -> locker.lockKeysShared("a")).get();
+
+        // another reader: the keys stay shared
+        assertFalse(lock.tryUpgrade());
+        other.submit(reader::release).get();
+        assertTrue(lock.tryUpgrade());
+        assertFalse(locker.tryOptimisticRead("b").validate());
+        assertNull(other.submit(() -> locker.tryLockKeys(10, TimeUnit.MILLISECONDS, "b")).get());
+        lock.release();
+        assertThrows(RuntimeException.class, lock::downgrade);
+
+        try (KeyLocker.AdjustableKeys<String> single = locker.lockKey("c")) {
+            single.downgrade();
+            other.submit(() -> locker.lockKeysShared("c").release()).get();
+            assertTrue(single.tryUpgrade());
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "c")).get());
+        }
+        other.shutdown();
+        assertFalse(locker.hasLockedThreads());
+
+        // readers upgrading at the same time: whoever succeeds writes alone
+        Counter c1 = new Counter(String.valueOf(1));
+        AtomicInteger writes = new AtomicInteger();
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads * 2);
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try {
+                    for (int j = 0; j < 100; j++) {
+                        try (KeyLocker.AdjustableKeys<String> lock1 = locker.lockKeysShared("1")) {
+                            if (lock1.tryUpgrade()) {
+                                c1.inc();
+                                writes.incrementAndGet();
+                                lock1.downgrade();
+                            }
+                        }
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+            ex.submit(() -> {
+                try {
+                    for (int j = 0; j < 100; j++) {
+                        try (Locker.LockedKeys lock1 = locker.lockKeys("1")) {
+                            c1.inc();
+                            writes.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(writes.get(), c1.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void extend() throws Exception {
+        OptimisticLocalLocker locker = new OptimisticLocalLocker(BackoffStrategy.spinYieldPark(4, 4, 1, 100, TimeUnit.MICROSECONDS), 10000, TimeUnit.MILLISECONDS);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+
+        try (KeyLocker.AdjustableKeys<String> lock = locker.lockKeys("a")) {
+            lock.extend("b");
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "b")).get());
+
+            // none of the new keys while one is taken, and the held key stays locked
+            Locker.LockedKeys taken = other.submit(() -> locker.lockKeys("c")).get();
+            assertFalse(lock.tryExtend(10, TimeUnit.MILLISECONDS, "d", "c"));
+            assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "d")).get());
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "a")).get());
+            other.submit(taken::release).get();
+            assertTrue(lock.tryExtend(10, TimeUnit.MILLISECONDS, "d", "c"));
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "c")).get());
+        }
+        assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "a") && isFree(locker, "c")).get());
+
+        try (KeyLocker.AdjustableKeys<String> lock = locker.lockKeysShared("s")) {
+            lock.extend("t");
+            other.submit(() -> locker.lockKeysShared("t").release()).get();
+            assertNull(other.submit(() -> locker.tryLockKeys("t")).get());
+        }
+        try (KeyLocker.AdjustableKeys<String> single = locker.lockKey("e")) {
+            single.extend("f");
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "e") || isFree(locker, "f")).get());
+            single.releaseKeys("e");
+            assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "e")).get());
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "f")).get());
+            single.release();
+        }
+        assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "f")).get());
+        other.shutdown();
+        assertFalse(locker.hasLockedThreads());
+
+        // holders extending towards each other's keys time out instead of deadlocking
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch locked = new CountDownLatch(2);
+        Future<Boolean> xy = ex.submit(() -> {
+            try (KeyLocker.AdjustableKeys<String> lock = locker.lockKeys("x")) {
+                locked.countDown();
+                locked.await();
+                return lock.tryExtend(50, TimeUnit.MILLISECONDS, "y");
+            }
+        });
+        Future<Boolean> yx = ex.submit(() -> {
+            try (KeyLocker.AdjustableKeys<String> lock = locker.lockKeys("y")) {
+                locked.countDown();
+                locked.await();
+                return lock.tryExtend(50, TimeUnit.MILLISECONDS, "x");
+            }
+        });
+        boolean extendedX = xy.get(10, TimeUnit.SECONDS);
+        boolean extendedY = yx.get(10, TimeUnit.SECONDS);
+        assertFalse(extendedX && extendedY);
+        ex.shutdown();
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void release_keys() throws Exception {
+        OptimisticLocalLocker locker = new OptimisticLocalLocker(BackoffStrategy.adaptive(10, 1000, TimeUnit.MICROSECONDS), 10000, TimeUnit.MILLISECONDS);
+
+        KeyLocker.AdjustableKeys<String> lock = locker.lockKeys("a", "b", "c");
+        lock.releaseKeys("a");
+        assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "a")).get());
+        assertTrue(locker.tryOptimisticRead("a").validate());
+        assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "b")).get());
+        // nothing is released unless every key is held
+        assertThrows(RuntimeException.class, () -> lock.releaseKeys("b", "x"));
+        assertThrows(RuntimeException.class, () -> lock.releaseKeys("b", "b"));
+        assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "b")).get());
+        lock.releaseKeys("c", "b");
+        assertFalse(locker.hasLockedThreads());
+
+        // one hold per occurrence, also across handles
+        try (Locker.LockedKeys outer = locker.lockKeys("n")) {
+            try (KeyLocker.AdjustableKeys<String> inner = locker.lockKeys("n", "m", "n")) {
+                inner.releaseKeys("n");
+                inner.releaseKeys("n");
+                assertTrue(CompletableFuture.supplyAsync(() -> !isFree(locker, "n") && !isFree(locker, "m")).get());
+            }
+            assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "m")).get());
+            assertFalse(CompletableFuture.supplyAsync(() -> isFree(locker, "n")).get());
+        }
+
+        try (KeyLocker.AdjustableKeys<String> shared = locker.lockKeysShared("s", "t")) {
+            shared.releaseKeys("s");
+            assertTrue(CompletableFuture.supplyAsync(() -> isFree(locker, "s")).get());
+        }
+        KeyLocker.AdjustableKeys<String> single = locker.lockKey("k");
+        assertThrows(RuntimeException.class, () -> single.releaseKeys("l"));
+        single.releaseKeys("k");
+        assertFalse(locker.hasLockedThreads());
+
+        // keys released as soon as they are done with let the next stage in
+        Counter c1 = new Counter(String.valueOf(1));
+        Counter c2 = new Counter(String.valueOf(2));
+        ExecutorService ex = Executors.newCachedThreadPool();
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            ex.submit(() -> {
+                try {
+                    for (int j = 0; j < 100; j++) {
+                        try (KeyLocker.AdjustableKeys<String> stages = locker.lockKeys("1", "2")) {
+                            c1.inc();
+                            stages.releaseKeys("1");
+                            c2.inc();
+                        }
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            });
+        }
+
+        cdl.await();
+        ex.shutdownNow();
+        ex.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(threads * 100, c1.value);
+        assertEquals(threads * 100, c2.value);
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 4, name = "{currentRepetition}/{totalRepetitions}")
+    public void interrupted_parking() throws Exception {
+        Locker locker = new ParkingLocalLocker(10000);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        Locker.LockedKeys taken = other.submit(() -> locker.lockKeys("x")).get();
+
+        // an interrupt while waiting for a key leaves nothing behind
+        Thread.currentThread().interrupt();
+        assertThrows(RuntimeException.class, () -> locker.lockKeys("w", "x"));
+        assertFalse(Thread.interrupted());
+        other.submit(taken::release).get();
+        other.shutdown();
+        assertFalse(locker.hasLockedThreads());
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void release_twice() throws Exception {
+        Locker[] lockers = {
+                new PessimisticLocalLocker(2000),
+                new ParkingLocalLocker(2000)
+        };
+
+        for (Locker locker : lockers) {
+            ExecutorService ex = Executors.newCachedThreadPool();
+            Locker.LockedKeys global = locker.lock();
+            global.release();
+            Locker.LockedKeys keyed = locker.lockKeys("k");
+            keyed.release();
+
+            CountDownLatch held = new CountDownLatch(1);
+            CountDownLatch stale = new CountDownLatch(1);
+            Future<?> other = ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lock()) {
+                    held.countDown();
+                    stale.await();
+                }
+                return null;
+            });
+            held.await();
+            // a second release of a handle is a no-op, whoever holds the lock now
+            global.release();
+            assertTrue(locker.hasLockedThreads());
+            assertFalse(isFree(locker, "k"));
+            stale.countDown();
+            other.get();
+
+            CountDownLatch heldKey = new CountDownLatch(1);
+            CountDownLatch staleKey = new CountDownLatch(1);
+            other = ex.submit(() -> {
+                try (Locker.LockedKeys lock = locker.lockKeys("k")) {
+                    heldKey.countDown();
+                    staleKey.await();
+                }
+                return null;
+            });
+            heldKey.await();
+            keyed.release();
+            assertFalse(isFree(locker, "k"));
+            staleKey.countDown();
+            other.get();
+
+            try (Locker.LockedKeys lock = locker.lockKeys("k")) {
+                lock.release();
+            }
+            ex.shutdown();
+            assertFalse(locker.hasLockedThreads());
+            assertTrue(isFree(locker, "k"));
+        }
+    }
+
+    @RepeatedTest(value = 8, name = "{currentRepetition}/{totalRepetitions}")
+    public void parking_release_by_other_thread() throws Exception {
+        ParkingLocalLocker locker = new ParkingLocalLocker(2000);
+        ExecutorService ex = Executors.newCachedThreadPool();
+        Locker.LockedKeys global = locker.lock();
+        Locker.LockedKeys keyed = locker.lockKeys("k");
+
+        // only the owner releases an exclusive hold; the handles stay usable
+        Future<?> other = ex.submit(() -> {
+            assertThrows(IllegalMonitorStateException.class, global::release);
+            assertThrows(IllegalMonitorStateException.class, keyed::release);
+            return null;
+        });
+        other.get();
+        assertTrue(locker.hasLockedThreads());
+        keyed.release();
+        global.release();
+        ex.shutdown();
+        assertFalse(locker.hasLockedThreads());
+        assertTrue(isFree(locker, "k"));
+    }
+
+    private static boolean isFree(Locker locker, String key) {
+        Locker.LockedKeys lock = locker.tryLockKeys(key);
+        if (lock == null) {
+            return false;
+        }
+        lock.release();
+        return true;
+    }
+
+    static final class EntityKey {
+        private final String tenant;
+        private final String type;
+        private final long id;
+
+        EntityKey(String tenant, String type, long id) {
+            this.tenant = tenant;
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof EntityKey)) {
+                return false;
+            }
+            EntityKey other = (EntityKey) o;
+            return this.id == other.id && this.tenant.equals(other.tenant) && this.type.equals(other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.tenant, this.type, this.id);
+        }
+
+        @Override
+        public String toString() {
+            return this.tenant + "/" + this.type + "/" + this.id;
+        }
     }
 
     class Counter {